@@ -0,0 +1,36 @@
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+group = "redactedrice"
+version = "0.8.0"
+
+repositories {
+    // Use Maven Central for resolving dependencies.
+    mavenCentral()
+}
+
+dependencies {
+    // The benchmarks are in the same package as the writer so they can get at the
+    // internal hot paths directly
+    jmh(project(":libBpsQueuedWriter"))
+    jmh("redactedrice:libGbcFramework:0.8.0")
+}
+
+java {
+    toolchain {
+        languageVersion = JavaLanguageVersion.of(20)
+    }
+}
+
+jmh {
+    jmhVersion = libs.versions.jmh.get()
+    // Report allocation rates alongside the throughput
+    profilers = listOf("gc")
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+}
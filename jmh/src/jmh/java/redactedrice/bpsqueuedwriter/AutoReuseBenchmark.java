@@ -0,0 +1,54 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import redactedrice.bpsqueuedwriter.RomData.Block;
+
+// Turning blocks started without hints into hunks when they are matched against the whole
+// source at different budgets. Shares one source between runs so building its index isn't
+// part of what is measured
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AutoReuseBenchmark {
+    @Param({"262144", "2097152", "8388608"})
+    int romSize;
+
+    // 0 leaves the blocks unmatched
+    @Param({"0", "1000", "10000", "9223372036854775807"})
+    long matchBudget;
+
+    BpsSource bpsSource;
+    Block[] blocks;
+
+    @Setup
+    public void setup() {
+        byte[] source = RomData.createSource(romSize);
+        bpsSource = new BpsSource(source);
+        bpsSource.buildMatchIndex();
+        blocks = RomData.createBlocks(source, romSize / 0x1000, 0x200, 0);
+    }
+
+    @Benchmark
+    public HunkStore createHunksWithoutHints() throws IOException {
+        BpsWriter writer = new BpsWriter(bpsSource);
+        if (matchBudget > 0) {
+            writer.setAutoSourceReuse(true);
+            writer.setMatchBudget(matchBudget);
+        }
+        RomData.queueBlocks(writer, blocks, false);
+        writer.blockBuilder.finalizeSelfReadBeingCreated(writer.hunks);
+        return writer.hunks;
+    }
+}
@@ -0,0 +1,65 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import redactedrice.bpsqueuedwriter.RomData.Block;
+
+// The CRCs the patch needs. A plain CRC32 of the source is the baseline for the engine,
+// the table of source segment CRCs and the target CRC built from the hunks
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class Crc32Benchmark {
+    @Param({"262144", "2097152", "8388608"})
+    int romSize;
+
+    byte[] source;
+    SourceCrcTable sourceCrcs;
+    HunkStore filled;
+
+    @Setup
+    public void setup() throws IOException {
+        source = RomData.createSource(romSize);
+        Block[] blocks = RomData.createBlocks(source, romSize / 0x400, 0x200, 0x100);
+        BpsWriter writer = new BpsWriter(source);
+        RomData.queueBlocks(writer, blocks, true);
+        filled = writer.prepareHunksForWriting(RomData.createBlanks(blocks));
+        sourceCrcs = writer.getSourceCrcs();
+    }
+
+    @Benchmark
+    public long plainCrc32() {
+        CRC32 crc = new CRC32();
+        crc.update(source);
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public long engineCrc32() {
+        return Crc32Engine.getDefault().crc32(source);
+    }
+
+    @Benchmark
+    public SourceCrcTable sourceCrcTable() {
+        return new SourceCrcTable(ByteBuffer.wrap(source), Crc32Engine.getDefault());
+    }
+
+    @Benchmark
+    public long targetCrc32() {
+        return new BpsTargetView(ByteBuffer.wrap(source), sourceCrcs, filled)
+                .computeCrc32();
+    }
+}
@@ -0,0 +1,59 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import redactedrice.bpsqueuedwriter.RomData.Block;
+
+// Turning blocks without hints into hunks when the second half of them repeat blocks from
+// the first half like data that was queued again at another address
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DedupeBenchmark {
+    @Param({"262144", "2097152", "8388608"})
+    int romSize;
+
+    @Param({"false", "true"})
+    boolean blockDedupe;
+
+    byte[] source;
+    Block[] blocks;
+
+    @Setup
+    public void setup() {
+        source = RomData.createSource(romSize);
+        Block[] created = RomData.createBlocks(source, romSize / 0x1000, 0x200, 0x100);
+        blocks = new Block[created.length];
+        int half = created.length / 2;
+        for (int i = 0; i < half; i++) {
+            blocks[i] = created[i];
+        }
+        for (int i = half; i < created.length; i++) {
+            // Cut to the space the block has so every byte of it repeats the earlier block
+            byte[] repeated = created[i - half].bytes;
+            blocks[i] = new Block(created[i].address, Arrays.copyOf(repeated,
+                    Math.min(repeated.length, created[i].bytes.length)), created[i].hints);
+        }
+    }
+
+    @Benchmark
+    public HunkStore createHunksWithDedupe() throws IOException {
+        BpsWriter writer = new BpsWriter(source);
+        writer.setBlockDedupe(blockDedupe);
+        RomData.queueBlocks(writer, blocks, false);
+        writer.blockBuilder.finalizeSelfReadBeingCreated(writer.hunks);
+        return writer.hunks;
+    }
+}
@@ -0,0 +1,52 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import redactedrice.bpsqueuedwriter.RomData.Block;
+import redactedrice.bpsqueuedwriter.RomData.DiscardingChannel;
+
+// Encoding already prepared hunks into the patch bytes. Covers the varint headers and
+// offsets, self read data coming out of the arena and fills
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodeBenchmark {
+    @Param({"262144", "2097152", "8388608"})
+    int romSize;
+
+    // 0 hints the whole source
+    @Param({"256", "0"})
+    int hintWidth;
+
+    BpsWriter writer;
+    HunkStore filled;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] source = RomData.createSource(romSize);
+        Block[] blocks = RomData.createBlocks(source, romSize / 0x400, 0x200, hintWidth);
+        writer = new BpsWriter(source);
+        RomData.queueBlocks(writer, blocks, true);
+        filled = writer.prepareHunksForWriting(RomData.createBlanks(blocks));
+    }
+
+    @Benchmark
+    public long writeHunks() throws IOException {
+        DiscardingChannel channel = new DiscardingChannel();
+        BpsPatchOutput bpsOs = new BpsPatchOutput(channel);
+        filled.write(bpsOs, writer.getStats());
+        bpsOs.flush();
+        return channel.getWritten();
+    }
+}
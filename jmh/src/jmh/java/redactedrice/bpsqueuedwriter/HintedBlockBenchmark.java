@@ -0,0 +1,54 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import redactedrice.bpsqueuedwriter.BpsWriter.MatchEffort;
+import redactedrice.bpsqueuedwriter.RomData.Block;
+
+// Turning hinted blocks into hunks as they are finished. Shares one source between runs so
+// building its index isn't part of what is measured
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HintedBlockBenchmark {
+    @Param({"262144", "2097152", "8388608"})
+    int romSize;
+
+    // 0 hints the whole source
+    @Param({"256", "16384", "0"})
+    int hintWidth;
+
+    @Param({"GREEDY", "OPTIMAL"})
+    MatchEffort effort;
+
+    BpsSource bpsSource;
+    Block[] blocks;
+
+    @Setup
+    public void setup() {
+        byte[] source = RomData.createSource(romSize);
+        bpsSource = new BpsSource(source);
+        bpsSource.buildMatchIndex();
+        blocks = RomData.createBlocks(source, romSize / 0x1000, 0x200, hintWidth);
+    }
+
+    @Benchmark
+    public HunkStore createHunksBasedOnHints() throws IOException {
+        BpsWriter writer = new BpsWriter(bpsSource);
+        writer.setMatchEffort(effort);
+        RomData.queueBlocks(writer, blocks, true);
+        writer.blockBuilder.finalizeSelfReadBeingCreated(writer.hunks);
+        return writer.hunks;
+    }
+}
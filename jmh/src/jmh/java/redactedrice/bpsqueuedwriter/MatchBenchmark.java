@@ -0,0 +1,56 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import redactedrice.bpsqueuedwriter.RomData.Block;
+
+// Looking up the best source match for blocks at different hint widths. The source index
+// is built before measuring so this is only the cost of the lookups
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MatchBenchmark {
+    // Each lookup is done every this many bytes through the block
+    private static final int LOOKUP_SPACING = 0x10;
+
+    @Param({"262144", "2097152", "8388608"})
+    int romSize;
+
+    // 0 hints the whole source
+    @Param({"256", "16384", "0"})
+    int hintWidth;
+
+    Block[] blocks;
+    BlockBuilder blockBuilder;
+
+    @Setup
+    public void setup() {
+        byte[] source = RomData.createSource(romSize);
+        blocks = RomData.createBlocks(source, romSize / 0x1000, 0x200, hintWidth);
+        BpsWriter writer = new BpsWriter(source);
+        writer.getSourceMatchIndex();
+        blockBuilder = new BlockBuilder(writer, new PayloadArena(), false);
+    }
+
+    @Benchmark
+    public void bestMatch(Blackhole blackhole) {
+        for (Block block : blocks) {
+            for (int spot = 0; spot < block.bytes.length; spot += LOOKUP_SPACING) {
+                blackhole.consume(blockBuilder.getBestMatch(block.hints, block.bytes, spot,
+                        Math.min(BpsWriter.DEFAULT_MIN_MATCH_LENGTH, block.bytes.length - spot),
+                        SourceMatchIndex.NO_PREFERENCE));
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Getting the source match index ready the way a tool does when it starts, either by
+// building it or by mapping in the one an earlier run saved. Both include the source CRC
+// since loading needs it to check the file
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MatchIndexBenchmark {
+    @Param({"262144", "2097152", "8388608"})
+    int romSize;
+
+    byte[] source;
+    Path indexFile;
+
+    @Setup
+    public void setup() throws IOException {
+        source = RomData.createSource(romSize);
+        indexFile = Files.createTempFile("bpsMatchIndex", ".idx");
+        new BpsSource(source).saveMatchIndex(indexFile);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(indexFile);
+    }
+
+    @Benchmark
+    public BpsSource buildIndex() {
+        BpsSource built = new BpsSource(source);
+        built.getCrc32();
+        built.buildMatchIndex();
+        return built;
+    }
+
+    @Benchmark
+    public BpsSource loadIndex() throws IOException {
+        BpsSource loaded = new BpsSource(source);
+        if (!loaded.loadMatchIndex(indexFile)) {
+            throw new IllegalArgumentException("Saved index was not loaded");
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,57 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import redactedrice.bpsqueuedwriter.RomData.Block;
+import redactedrice.gbcframework.addressing.AddressRange;
+
+// Packing the hunks and filling the gaps between them with source reads and blanks when
+// there are lots of small blocks. Each run gets a freshly queued writer since preparing
+// the hunks replaces them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PackAndFillBenchmark {
+    @Param({"262144", "2097152", "8388608"})
+    int romSize;
+
+    // Roughly one small block every this many bytes
+    @Param({"64", "1024"})
+    int blockSpacing;
+
+    byte[] source;
+    Block[] blocks;
+    List<AddressRange> blanks;
+    BpsWriter writer;
+
+    @Setup
+    public void setup() {
+        source = RomData.createSource(romSize);
+        blocks = RomData.createBlocks(source, romSize / blockSpacing, 0x20, 0);
+        blanks = RomData.createBlanks(blocks);
+    }
+
+    @Setup(Level.Invocation)
+    public void queueBlocks() throws IOException {
+        writer = new BpsWriter(source);
+        RomData.queueBlocks(writer, blocks, false);
+    }
+
+    @Benchmark
+    public HunkStore optimizeAndPackHunksAndFill() {
+        return writer.prepareHunksForWriting(blanks);
+    }
+}
@@ -0,0 +1,74 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import redactedrice.bpsqueuedwriter.RomData.Block;
+import redactedrice.bpsqueuedwriter.RomData.DiscardingChannel;
+import redactedrice.gbcframework.addressing.AddressRange;
+
+// Writing the same patch again after a small change like a tool saving as it is edited.
+// Each write blanks or stops blanking one gap in the middle of the target so only the part
+// of the target around it changes
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RewriteBpsBenchmark {
+    @Param({"262144", "2097152", "8388608"})
+    int romSize;
+
+    @Param({"false", "true"})
+    boolean cacheEncoding;
+
+    List<AddressRange> blanks;
+    List<AddressRange> editedBlanks;
+    boolean edited;
+    BpsWriter writer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] source = RomData.createSource(romSize);
+        Block[] blocks = RomData.createBlocks(source, romSize / 0x400, 0x200, 0x100);
+        blanks = RomData.createBlanks(blocks);
+
+        // createBlanks only blanks the gaps before every fourth block so this one is free
+        int middle = blocks.length / 2 | 3;
+        editedBlanks = new ArrayList<>(blanks);
+        editedBlanks.add(new AddressRange(
+                blocks[middle - 1].address + blocks[middle - 1].bytes.length,
+                blocks[middle].address));
+
+        writer = new BpsWriter(source);
+        writer.setCacheEncoding(cacheEncoding);
+        RomData.queueBlocks(writer, blocks, true);
+        writer.writeBps(new DiscardingChannel(), blanks);
+        edited = false;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        writer.close();
+    }
+
+    @Benchmark
+    public long rewriteBps() throws IOException {
+        edited = !edited;
+        DiscardingChannel channel = new DiscardingChannel();
+        writer.writeBps(channel, edited ? editedBlanks : blanks);
+        return channel.getWritten();
+    }
+}
@@ -0,0 +1,149 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import redactedrice.gbcframework.addressing.AddressRange;
+
+// Seeded inputs shaped like GB/GBC roms for the benchmarks. Banks are a mix of code like
+// random bytes, repeated tiles and runs of 0x00 and 0xFF padding so matching and fills
+// behave like they would on real data. The same seed always gives the same data
+final class RomData {
+    static final long SEED = 0x5EED;
+    static final int BANK_SIZE = 0x4000;
+    static final int TILE_SIZE = 0x10;
+
+    private RomData() {
+        // Only static data creation
+    }
+
+    static byte[] createSource(int size) {
+        Random random = new Random(SEED);
+        byte[] rom = new byte[size];
+        random.nextBytes(rom);
+
+        byte[] tile = new byte[TILE_SIZE];
+        for (int bank = 0; bank < size; bank += BANK_SIZE) {
+            // A few tiles repeated through the bank
+            random.nextBytes(tile);
+            int tiles = random.nextInt(0x40);
+            for (int i = 0; i < tiles; i++) {
+                int at = bank + random.nextInt(BANK_SIZE - TILE_SIZE);
+                System.arraycopy(tile, 0, rom, Math.min(at, size - TILE_SIZE), TILE_SIZE);
+            }
+
+            // Padding at the end of the bank
+            int padding = random.nextInt(BANK_SIZE / 4);
+            byte pad = random.nextBoolean() ? (byte) 0xFF : 0;
+            for (int i = bank + BANK_SIZE - padding; i < Math.min(bank + BANK_SIZE, size); i++) {
+                rom[i] = pad;
+            }
+        }
+        return rom;
+    }
+
+    // Blocks made by copying pieces of the source and changing a few bytes in each like a
+    // randomizer moving and editing data. They are in order and never overlap
+    static Block[] createBlocks(byte[] source, int count, int maxLength, int hintWidth) {
+        Random random = new Random(SEED + 1);
+        int spacing = source.length / count;
+        int length = Math.min(maxLength, spacing - 1);
+        Block[] blocks = new Block[count];
+        for (int i = 0; i < count; i++) {
+            int blockLength = 1 + random.nextInt(length);
+            int copiedFrom = random.nextInt(source.length - blockLength);
+            byte[] bytes = new byte[blockLength];
+            System.arraycopy(source, copiedFrom, bytes, 0, blockLength);
+            for (int edits = random.nextInt(4); edits > 0; edits--) {
+                bytes[random.nextInt(blockLength)] = (byte) random.nextInt();
+            }
+
+            // Never at 0 since blocks there are ignored
+            int address = i * spacing + 1 + random.nextInt(spacing - blockLength);
+            blocks[i] = new Block(address, bytes,
+                    createHints(source.length, copiedFrom, blockLength, hintWidth));
+        }
+        return blocks;
+    }
+
+    // A hint width of 0 hints the whole source
+    private static List<AddressRange> createHints(int sourceLength, int copiedFrom, int length,
+            int hintWidth) {
+        if (hintWidth <= 0) {
+            return Collections.singletonList(new AddressRange(0, sourceLength));
+        }
+        List<AddressRange> hints = new ArrayList<>();
+        hints.add(new AddressRange(Math.max(0, copiedFrom - hintWidth / 2),
+                Math.min(sourceLength, copiedFrom + length + hintWidth / 2)));
+        return hints;
+    }
+
+    // Blanks a bit of space between some of the blocks
+    static List<AddressRange> createBlanks(Block[] blocks) {
+        List<AddressRange> blanks = new ArrayList<>();
+        for (int i = 1; i < blocks.length; i += 4) {
+            int start = blocks[i - 1].address + blocks[i - 1].bytes.length;
+            if (blocks[i].address > start) {
+                blanks.add(new AddressRange(start, blocks[i].address));
+            }
+        }
+        return blanks;
+    }
+
+    static void queueBlocks(BpsWriter writer, Block[] blocks, boolean useHints)
+            throws IOException {
+        for (Block block : blocks) {
+            if (useHints) {
+                writer.startNewBlock(block.address, block.hints);
+            } else {
+                writer.startNewBlock(block.address);
+            }
+            writer.append(block.bytes);
+        }
+    }
+
+    static final class Block {
+        final int address;
+        final byte[] bytes;
+        final List<AddressRange> hints;
+
+        Block(int address, byte[] bytes, List<AddressRange> hints) {
+            this.address = address;
+            this.bytes = bytes;
+            this.hints = hints;
+        }
+    }
+
+    // Throws away everything written to it so only the work of creating the patch is measured
+    static final class DiscardingChannel implements WritableByteChannel {
+        private long written;
+
+        @Override
+        public int write(ByteBuffer source) {
+            int remaining = source.remaining();
+            source.position(source.limit());
+            written += remaining;
+            return remaining;
+        }
+
+        long getWritten() {
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close
+        }
+    }
+}
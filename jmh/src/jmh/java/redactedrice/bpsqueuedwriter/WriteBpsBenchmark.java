@@ -0,0 +1,80 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import redactedrice.bpsqueuedwriter.RomData.Block;
+import redactedrice.bpsqueuedwriter.RomData.DiscardingChannel;
+import redactedrice.gbcframework.addressing.AddressRange;
+
+// Everything from queueing the blocks to the last byte of the patch. Includes building
+// the source index and CRCs since a real run has to do that too unless it shares one
+// source between many patches
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WriteBpsBenchmark {
+    @Param({"262144", "2097152", "8388608"})
+    int romSize;
+
+    // 0 hints the whole source
+    @Param({"256", "0"})
+    int hintWidth;
+
+    byte[] source;
+    BpsSource sharedSource;
+    Block[] blocks;
+    List<AddressRange> blanks;
+
+    @Setup
+    public void setup() {
+        source = RomData.createSource(romSize);
+        blocks = RomData.createBlocks(source, romSize / 0x1000, 0x200, hintWidth);
+        blanks = RomData.createBlanks(blocks);
+        sharedSource = new BpsSource(source);
+        sharedSource.buildMatchIndex();
+        sharedSource.getCrc32();
+    }
+
+    @Benchmark
+    public long writeBps() throws IOException {
+        DiscardingChannel channel = new DiscardingChannel();
+        try (BpsWriter writer = new BpsWriter(source)) {
+            RomData.queueBlocks(writer, blocks, true);
+            writer.writeBps(channel, blanks);
+        }
+        return channel.getWritten();
+    }
+
+    @Benchmark
+    public long writeBpsSharedSource() throws IOException {
+        DiscardingChannel channel = new DiscardingChannel();
+        try (BpsWriter writer = new BpsWriter(sharedSource)) {
+            RomData.queueBlocks(writer, blocks, true);
+            writer.writeBps(channel, blanks);
+        }
+        return channel.getWritten();
+    }
+
+    @Benchmark
+    public long writeBpsAsyncSharedSource() throws IOException {
+        DiscardingChannel channel = new DiscardingChannel();
+        try (BpsWriter writer = new BpsWriter(sharedSource)) {
+            RomData.queueBlocks(writer, blocks, true);
+            writer.writeBpsAsync(channel, blanks, ForkJoinPool.commonPool()).join();
+        }
+        return channel.getWritten();
+    }
+}
@@ -0,0 +1,711 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import redactedrice.bpsqueuedwriter.BpsWriter.BpsHunkCopyType;
+import redactedrice.bpsqueuedwriter.BpsWriter.MatchEffort;
+import redactedrice.bpsqueuedwriter.BpsWriterStats.Phase;
+import redactedrice.gbcframework.addressing.AddressRange;
+
+// Turns the blocks written through a QueuedWriter into hunks. Each builder appends to its
+// own payload arena and only reads from the writer's shared source data so builders used
+// by different threads never write to anything in common
+class BlockBuilder {
+    private static final AddressRange NO_MATCH = new AddressRange(0, 0);
+    // Matches at least this long are taken as is by the optimal parse instead of trying
+    // every way of splitting them up. Keeps it from going quadratic on long matches
+    static final int SUFFICIENT_MATCH_LENGTH = 0x80;
+    // Estimated size of the header of a self read
+    private static final int SELF_READ_HEADER_COST = 1;
+    private static final int UNREACHED = Integer.MAX_VALUE;
+    // Runs of the same byte at least this long in a block are made into fills
+    static final int MIN_RUN_LENGTH = 8;
+    private static final int NO_RUN = Integer.MIN_VALUE;
+
+    private final BpsWriter writer;
+    private final BpsWriterStats stats;
+    private final PayloadArena payloads;
+    // Target reuse depends on the order blocks are finalized in so only the writer's own
+    // builder does it
+    private final boolean allowTargetReuse;
+
+    // The block being created is everything in the arena from its start offset on
+    private int selfReadBeingCreatedDestIndex;
+    private String selfReadBeingCreatedName;
+    private int selfReadBeingCreatedStart;
+    private List<AddressRange> selfReadBeingCreatedReuse;
+    private boolean selfReadBeingCreatedReuseTarget;
+    // Runs found in the block being created as offsets into the arena. Tracked as bytes are
+    // appended so blocks without hints never need to be looked at again
+    private int[] runStarts;
+    private int[] runLengths;
+    private byte[] runBytes;
+    private int runCount;
+    private int currentRunStart;
+    private int currentRunByte;
+
+    // Hinted blocks waiting to be matched when deferred matching is on
+    private final List<FinishedBlock> pendingBlocks;
+
+    BlockBuilder(BpsWriter writer, PayloadArena payloads, boolean allowTargetReuse) {
+        this.writer = writer;
+        this.stats = writer.getStats();
+        this.payloads = payloads;
+        this.allowTargetReuse = allowTargetReuse;
+
+        selfReadBeingCreatedDestIndex = -1;
+        selfReadBeingCreatedStart = 0;
+        selfReadBeingCreatedReuse = new ArrayList<>();
+        selfReadBeingCreatedReuseTarget = false;
+        pendingBlocks = new ArrayList<>();
+
+        runStarts = new int[MIN_RUN_LENGTH];
+        runLengths = new int[MIN_RUN_LENGTH];
+        runBytes = new byte[MIN_RUN_LENGTH];
+        clearRuns();
+    }
+
+    PayloadArena getPayloads() {
+        return payloads;
+    }
+
+    void append(byte[] bytes) {
+        int offset = payloads.append(bytes, 0, bytes.length);
+        for (int index = 0; index < bytes.length; index++) {
+            if (bytes[index] != currentRunByte) {
+                endRun(offset + index);
+                currentRunStart = offset + index;
+                currentRunByte = bytes[index];
+            }
+        }
+    }
+
+    private void endRun(int runEnd) {
+        if (currentRunByte == NO_RUN || runEnd - currentRunStart < MIN_RUN_LENGTH) {
+            return;
+        }
+        if (runCount == runStarts.length) {
+            runStarts = Arrays.copyOf(runStarts, runCount * 2);
+            runLengths = Arrays.copyOf(runLengths, runCount * 2);
+            runBytes = Arrays.copyOf(runBytes, runCount * 2);
+        }
+        runStarts[runCount] = currentRunStart;
+        runLengths[runCount] = runEnd - currentRunStart;
+        runBytes[runCount] = (byte) currentRunByte;
+        runCount++;
+    }
+
+    private void clearRuns() {
+        runCount = 0;
+        currentRunStart = 0;
+        currentRunByte = NO_RUN;
+    }
+
+    // Drops the block being created and any waiting to be matched. The arena is cleared
+    // separately by whoever owns it
+    void reset() {
+        selfReadBeingCreatedDestIndex = -1;
+        selfReadBeingCreatedName = null;
+        selfReadBeingCreatedStart = 0;
+        selfReadBeingCreatedReuse.clear();
+        selfReadBeingCreatedReuseTarget = false;
+        pendingBlocks.clear();
+        clearRuns();
+    }
+
+    String getCurrentBlockName() {
+        return selfReadBeingCreatedName;
+    }
+
+    // The caller finalizes the previous block first so it can choose where it goes. Blocks
+    // started without hints use the writer's default ones
+    void startNewBlock(int segmentStartAddress, String segmentName,
+            List<AddressRange> reuseHints, boolean reuseTarget) {
+        selfReadBeingCreatedDestIndex = segmentStartAddress;
+        selfReadBeingCreatedName = segmentName;
+        selfReadBeingCreatedReuseTarget = reuseTarget;
+        selfReadBeingCreatedReuse.clear();
+        if (reuseHints != null) {
+            selfReadBeingCreatedReuse.addAll(reuseHints);
+        } else {
+            selfReadBeingCreatedReuse.addAll(writer.getDefaultReuseHints());
+        }
+    }
+
+    // Starts a block with the same hints and target reuse as the last one started
+    void continueBlock(int segmentStartAddress, String segmentName) {
+        selfReadBeingCreatedDestIndex = segmentStartAddress;
+        selfReadBeingCreatedName = segmentName;
+    }
+
+    // Adds self read data that isn't part of a block
+    int appendSelfRead(byte[] data) {
+        int offset = payloads.append(data, 0, data.length);
+        selfReadBeingCreatedStart = payloads.size();
+        clearRuns();
+        return offset;
+    }
+
+    void finalizeSelfReadBeingCreated(HunkStore hunks) {
+        int selfReadBeingCreatedLength = payloads.size() - selfReadBeingCreatedStart;
+        if (selfReadBeingCreatedDestIndex > 0 && selfReadBeingCreatedLength > 0) {
+            PhaseTimer timer = PhaseTimer.start(Phase.FINALIZE);
+            endRun(payloads.size());
+            // If there are reuse hints or we are reusing the target, check now to see what
+            // we can reuse
+            if (!selfReadBeingCreatedReuse.isEmpty() || isTargetReuse()) {
+                FinishedBlock block = createFinishedBlock(selfReadBeingCreatedLength);
+                // Matching against the source doesn't depend on any other block so it can
+                // wait until the patch is written and be done in parallel then
+                if (writer.isDeferredMatching() && !isTargetReuse()) {
+                    pendingBlocks.add(block);
+                } else {
+                    createHunksBasedOnHints(block, isTargetReuse(), hunks);
+                }
+            } else if (isBlockDedupe()) {
+                createHunksByDedupe(createFinishedBlock(selfReadBeingCreatedLength), hunks);
+            } else if (runCount == 0) {
+                // Already in the arena so nothing needs copying
+                hunks.add(selfReadBeingCreatedName, selfReadBeingCreatedDestIndex,
+                        HunkStore.SELF_READ, selfReadBeingCreatedLength,
+                        selfReadBeingCreatedStart);
+            } else {
+                addSelfRead(createFinishedBlock(selfReadBeingCreatedLength), 0, 0,
+                        selfReadBeingCreatedLength, hunks);
+            }
+            // Later blocks can copy this one however it was matched itself
+            if (isBlockDedupe()) {
+                writer.getBlockDedupe().addBlock(selfReadBeingCreatedDestIndex,
+                        selfReadBeingCreatedStart, selfReadBeingCreatedLength);
+            }
+
+            selfReadBeingCreatedStart = payloads.size();
+            clearRuns();
+            selfReadBeingCreatedDestIndex = -1;
+            selfReadBeingCreatedName = "INTERNAL_NAME_ERROR";
+            // The hints are kept in case the next block continues this one
+            timer.finish(stats, selfReadBeingCreatedLength);
+        }
+    }
+
+    private FinishedBlock createFinishedBlock(int length) {
+        int[] blockRunStarts = new int[runCount];
+        for (int run = 0; run < runCount; run++) {
+            blockRunStarts[run] = runStarts[run] - selfReadBeingCreatedStart;
+        }
+        return new FinishedBlock(selfReadBeingCreatedDestIndex, selfReadBeingCreatedName,
+                selfReadBeingCreatedStart, length, selfReadBeingCreatedReuse,
+                writer.getMinMatchLength(), writer.getMatchEffort(), writer.getMatchBudget(),
+                blockRunStarts, Arrays.copyOf(runLengths, runCount),
+                Arrays.copyOf(runBytes, runCount));
+    }
+
+    // Only for the block being created
+    private boolean isTargetReuse() {
+        return allowTargetReuse && (writer.isTargetReuse() || selfReadBeingCreatedReuseTarget);
+    }
+
+    // Deduping depends on the order blocks are finalized in the same as target reuse
+    private boolean isBlockDedupe() {
+        return allowTargetReuse && writer.isBlockDedupe();
+    }
+
+    // Matches all the pending blocks on the pool and gives the hunks with theirs merged in.
+    // Each block is matched on its own and the results are put together in the order the
+    // blocks were written so the hunks are the same as matching them one at a time
+    HunkStore finishPendingBlocks(HunkStore hunks, ForkJoinPool pool) {
+        if (pendingBlocks.isEmpty()) {
+            return hunks;
+        }
+        PhaseTimer timer = PhaseTimer.start(Phase.FINALIZE);
+        long pendingBytes = 0;
+        for (FinishedBlock block : pendingBlocks) {
+            pendingBytes += block.length;
+        }
+
+        // Build the index up front if any block would have used it rather than letting the
+        // first task that needs it hold up the rest while it's built
+        for (FinishedBlock block : pendingBlocks) {
+            if (getHintedBytes(block.reuseHints) >= BpsWriter.MIN_HINT_SIZE_TO_INDEX) {
+                writer.getSourceMatchIndex();
+                break;
+            }
+        }
+
+        HunkStore[] blockHunks = new HunkStore[pendingBlocks.size()];
+        pool.invoke(new MatchBlocksTask(blockHunks, 0, blockHunks.length));
+
+        HunkStore matched = new HunkStore(payloads, blockHunks.length * 2);
+        for (HunkStore oneBlock : blockHunks) {
+            for (int index = 0; index < oneBlock.size(); index++) {
+                matched.add(oneBlock, index);
+            }
+        }
+        pendingBlocks.clear();
+        HunkStore merged = HunkStore.merge(hunks, matched, hunks.getArena());
+        timer.finish(stats, pendingBytes);
+        return merged;
+    }
+
+    private void createHunksBasedOnHints(FinishedBlock block, boolean reuseTarget,
+            HunkStore hunks) {
+        // Matching needs random access to the block's bytes so they get their own array.
+        // The self reads still only refer to the bytes in the arena
+        byte[] hunkDesiredBytes = payloads.toByteArray(block.start, block.length);
+
+        // Matching against the target depends on what was picked before each spot so it
+        // can only be done greedily
+        if (block.effort == MatchEffort.OPTIMAL && !reuseTarget) {
+            createHunksOptimally(block, hunkDesiredBytes, hunks);
+        } else {
+            createHunksGreedily(block, hunkDesiredBytes, reuseTarget, hunks);
+        }
+    }
+
+    private void createHunksGreedily(FinishedBlock block, byte[] hunkDesiredBytes,
+            boolean reuseTarget, HunkStore hunks) {
+        int minMatchLength = block.minMatchLength;
+        // Until we have processed the entire hunk
+        int hunksCreated = 0;
+        int hunkSpot = 0;
+        int lastMatchSpot = 0;
+        // Counted separately so we know when this block has used up its budget
+        LongAdder sourceComparisons = new LongAdder();
+
+        // The bytes of this block are fixed at this point so later blocks and later spots
+        // in this block can copy from it
+        TargetMatchFinder targetMatches = null;
+        int targetBlock = -1;
+        int targetIndexedTo = 0;
+        if (reuseTarget) {
+            targetMatches = writer.getTargetMatches();
+            targetBlock = targetMatches.addBlock(block.destinationIndex, block.start,
+                    block.length);
+        }
+
+        // Could be a for loop but using a while since we are potentially
+        // jumping iterator forward outside the end of loop iterator
+        while (hunkSpot < hunkDesiredBytes.length) {
+            // Look for a segment match starting with this byte in the hunk. We only care
+            // about ones that are worth copying or that match to the end
+            AddressRange bestMatch = NO_MATCH;
+            if (!block.reuseHints.isEmpty()) {
+                bestMatch = getBestMatch(block.reuseHints, hunkDesiredBytes, hunkSpot,
+                        Math.min(minMatchLength, hunkDesiredBytes.length - hunkSpot),
+                        SourceMatchIndex.NO_PREFERENCE, sourceComparisons, block.matchBudget);
+            }
+            BpsHunkCopyType matchType = BpsHunkCopyType.SOURCE_COPY;
+
+            // See if the target has a longer match. We can only copy from the parts of
+            // this block we have already passed
+            if (targetBlock >= 0) {
+                targetMatches.indexPositions(targetBlock, hunkDesiredBytes, targetIndexedTo,
+                        hunkSpot);
+                targetIndexedTo = hunkSpot;
+                int targetMatchLength = targetMatches.findLongestMatch(hunkDesiredBytes,
+                        hunkSpot, block.destinationIndex + hunkSpot,
+                        stats.getMatchComparisonCounter());
+                if (targetMatchLength > bestMatch.size() && targetMatchLength >= minMatchLength
+                        && targetMatchLength > writer.estimateTargetCopySize(
+                                targetMatches.getMatchAddress(), targetMatchLength)) {
+                    bestMatch = new AddressRange(targetMatches.getMatchAddress(),
+                            targetMatches.getMatchAddress() + targetMatchLength);
+                    matchType = BpsHunkCopyType.TARGET_COPY;
+                }
+            }
+
+            // If its worth copying
+            if (bestMatch.size() >= minMatchLength ||
+                    hunkSpot + bestMatch.size() == hunkDesiredBytes.length) // Matches to the end
+            {
+                // Write the self copy if needed
+                if (lastMatchSpot != hunkSpot) {
+                    // Write from the last match spot to the current spot
+                    hunksCreated = addSelfRead(block, hunksCreated, lastMatchSpot,
+                            hunkSpot - lastMatchSpot, hunks);
+                }
+
+                // Now update the last match spot and write from the current spot to there
+                lastMatchSpot = hunkSpot + bestMatch.size();
+                addCopy(block, hunksCreated++, hunkSpot, HunkStore.toStoreType(matchType),
+                        bestMatch.getStart(), bestMatch.size(), hunks);
+                if (matchType == BpsHunkCopyType.TARGET_COPY) {
+                    writer.setLastTargetCopyEnd(bestMatch.getStopExclusive());
+                    // What it copies is already indexed so the copy is left out. Later
+                    // repeats then find and copy the original instead of this copy
+                    targetIndexedTo = lastMatchSpot;
+                }
+
+                // + 1 to move to the next unmatched spot
+                hunkSpot = lastMatchSpot;
+            }
+            hunkSpot++;
+        }
+
+        // Write the trailing self read if we didn't match to the end
+        if (hunkDesiredBytes.length > lastMatchSpot) {
+            // Write from the last match spot to the current spot
+            addSelfRead(block, hunksCreated, lastMatchSpot,
+                    hunkDesiredBytes.length - lastMatchSpot, hunks);
+        }
+        // The loop only indexes up to the spot it is looking at so the end of the block still
+        // needs to be for later blocks to copy it
+        if (targetBlock >= 0) {
+            targetMatches.indexPositions(targetBlock, hunkDesiredBytes, targetIndexedTo,
+                    hunkDesiredBytes.length);
+        }
+        stats.getMatchComparisonCounter().add(sourceComparisons.sum());
+    }
+
+    // Target copies the parts of the block that repeat earlier blocks and self reads the
+    // rest. Only chunks at multiples of the chunk size past the start of the block or the
+    // end of the last copy are looked up
+    private void createHunksByDedupe(FinishedBlock block, HunkStore hunks) {
+        BlockDedupeIndex dedupe = writer.getBlockDedupe();
+        byte[] bytes = payloads.toByteArray(block.start, block.length);
+        int hunksCreated = 0;
+        int lastMatchEnd = 0;
+        int spot = 0;
+        while (spot + BlockDedupeIndex.CHUNK_SIZE <= bytes.length) {
+            int matchLength = dedupe.findMatch(bytes, spot, lastMatchEnd,
+                    block.destinationIndex, stats.getMatchComparisonCounter());
+            if (matchLength == 0 || matchLength <= writer
+                    .estimateTargetCopySize(dedupe.getMatchAddress(), matchLength)) {
+                spot += BlockDedupeIndex.CHUNK_SIZE;
+                continue;
+            }
+
+            int matchStart = dedupe.getMatchStart();
+            if (matchStart > lastMatchEnd) {
+                hunksCreated = addSelfRead(block, hunksCreated, lastMatchEnd,
+                        matchStart - lastMatchEnd, hunks);
+            }
+            addCopy(block, hunksCreated++, matchStart, HunkStore.TARGET_COPY,
+                    dedupe.getMatchAddress(), matchLength, hunks);
+            writer.setLastTargetCopyEnd(dedupe.getMatchAddress() + matchLength);
+            lastMatchEnd = matchStart + matchLength;
+            spot = lastMatchEnd;
+        }
+
+        if (bytes.length > lastMatchEnd) {
+            addSelfRead(block, hunksCreated, lastMatchEnd, bytes.length - lastMatchEnd, hunks);
+        }
+    }
+
+    // Finds the split into self reads and source copies that takes the fewest bytes in the
+    // patch. Goes forward through the block keeping the cheapest way to get to each spot
+    // both ending in a self read and ending in a copy since extending a self read costs less
+    // than starting one. Copy offsets are relative to the previous copy so the cost of each
+    // copy is estimated from where the copy before it on the cheapest path ended
+    private void createHunksOptimally(FinishedBlock block, byte[] bytes, HunkStore hunks) {
+        int length = bytes.length;
+        OptimalParse parse = new OptimalParse(length);
+        LongAdder sourceComparisons = new LongAdder();
+
+        int committedTo = 0;
+        for (int spot = 0; spot < length; spot++) {
+            // Skip over the middle of long matches we already took
+            if (spot < committedTo) {
+                continue;
+            }
+
+            // Extend or start a self read
+            parse.relaxSelfRead(spot, parse.selfReadCosts[spot],
+                    parse.selfReadLastCopyEnds[spot], false);
+            parse.relaxSelfRead(spot, addCost(parse.copyCosts[spot], SELF_READ_HEADER_COST),
+                    parse.copyLastCopyEnds[spot], true);
+
+            // Prefer addresses that are cheap to get to from the cheapest way here
+            int lastCopyEnd = parse.selfReadCosts[spot] < parse.copyCosts[spot]
+                    ? parse.selfReadLastCopyEnds[spot] : parse.copyLastCopyEnds[spot];
+            AddressRange match = getBestMatch(block.reuseHints, bytes, spot,
+                    Math.min(block.minMatchLength, length - spot), lastCopyEnd,
+                    sourceComparisons, block.matchBudget);
+            int matchLength = match.size();
+            boolean toEnd = spot + matchLength == length;
+            if (matchLength < block.minMatchLength && !(toEnd && matchLength > 0)) {
+                continue;
+            }
+
+            // Try each length we could stop the match at unless its long enough that it's
+            // not worth splitting up
+            int shortest = Math.min(block.minMatchLength, matchLength);
+            if (matchLength >= SUFFICIENT_MATCH_LENGTH) {
+                shortest = matchLength;
+                committedTo = spot + matchLength;
+            }
+            boolean sourceRead = match.getStart() == block.destinationIndex + spot;
+            for (int copyLength = shortest; copyLength <= matchLength; copyLength++) {
+                parse.relaxCopy(spot, copyLength, match.getStart(), sourceRead,
+                        parse.selfReadCosts[spot], parse.selfReadLastCopyEnds[spot], true);
+                parse.relaxCopy(spot, copyLength, match.getStart(), sourceRead,
+                        parse.copyCosts[spot], parse.copyLastCopyEnds[spot], false);
+            }
+        }
+
+        // Walk back from the end to find the pieces on the cheapest path. They come out
+        // last first
+        int pieces = 0;
+        int[] pieceStarts = new int[length];
+        int[] pieceAddresses = new int[length];
+        boolean[] pieceIsSelfRead = new boolean[length];
+        boolean inSelfRead = parse.selfReadCosts[length] < parse.copyCosts[length];
+        int spot = length;
+        while (spot > 0) {
+            pieceIsSelfRead[pieces] = inSelfRead;
+            if (inSelfRead) {
+                while (inSelfRead && spot > 0) {
+                    inSelfRead = !parse.selfReadAfterCopy[spot];
+                    spot--;
+                }
+            } else {
+                pieceAddresses[pieces] = parse.copyAddresses[spot];
+                inSelfRead = parse.copyAfterSelfRead[spot];
+                spot = parse.copyStarts[spot];
+            }
+            pieceStarts[pieces++] = spot;
+        }
+
+        int hunksCreated = 0;
+        for (int piece = pieces - 1; piece >= 0; piece--) {
+            int start = pieceStarts[piece];
+            int pieceLength = (piece > 0 ? pieceStarts[piece - 1] : length) - start;
+            if (pieceIsSelfRead[piece]) {
+                hunksCreated = addSelfRead(block, hunksCreated, start, pieceLength, hunks);
+            } else {
+                addCopy(block, hunksCreated++, start, HunkStore.SOURCE_COPY,
+                        pieceAddresses[piece], pieceLength, hunks);
+            }
+        }
+        stats.getMatchComparisonCounter().add(sourceComparisons.sum());
+    }
+
+    private static int addCost(int cost, int toAdd) {
+        return cost == UNREACHED ? UNREACHED : cost + toAdd;
+    }
+
+    // Adds self reads for the part of the block with fills in place of any runs in it.
+    // Returns the number for the next hunk of the block
+    private int addSelfRead(FinishedBlock block, int number, int blockOffset, int length,
+            HunkStore hunks) {
+        int end = blockOffset + length;
+        for (int run = block.firstRunEndingAfter(blockOffset); run < block.runStarts.length
+                && block.runStarts[run] < end; run++) {
+            int runStart = Math.max(block.runStarts[run], blockOffset);
+            int runEnd = Math.min(block.runStarts[run] + block.runLengths[run], end);
+            if (runEnd - runStart < MIN_RUN_LENGTH) {
+                continue;
+            }
+            if (runStart > blockOffset) {
+                addSelfReadPiece(block, number++, blockOffset, runStart - blockOffset, hunks);
+            }
+            hunks.add(block.name, HunkStore.NAME_NUMBERED_FILL, number++,
+                    block.destinationIndex + runStart, HunkStore.FILL, runEnd - runStart,
+                    block.runBytes[run]);
+            blockOffset = runEnd;
+        }
+        if (end > blockOffset) {
+            addSelfReadPiece(block, number++, blockOffset, end - blockOffset, hunks);
+        }
+        return number;
+    }
+
+    private void addSelfReadPiece(FinishedBlock block, int number, int blockOffset,
+            int length, HunkStore hunks) {
+        hunks.add(block.name, HunkStore.NAME_NUMBERED_SELF_READ, number,
+                block.destinationIndex + blockOffset, HunkStore.SELF_READ, length,
+                block.start + blockOffset);
+    }
+
+    private void addCopy(FinishedBlock block, int number, int blockOffset, byte type,
+            int copyFromIndex, int length, HunkStore hunks) {
+        if (type == HunkStore.SOURCE_COPY) {
+            stats.addBytesSavedByHints(length);
+        }
+        hunks.add(block.name, HunkStore.NAME_NUMBERED_COPY, number,
+                block.destinationIndex + blockOffset, type, length, copyFromIndex);
+    }
+
+    // Without a budget both ways of searching give the same useful matches so it doesn't
+    // matter which blocks are matched before the index gets built
+    AddressRange getBestMatch(List<AddressRange> reuseHints, byte[] hunkDesiredBytes,
+            int hunkSpot, int minUsefulLength, long preferNear) {
+        return getBestMatch(reuseHints, hunkDesiredBytes, hunkSpot, minUsefulLength,
+                preferNear, stats.getMatchComparisonCounter(), BpsWriter.UNLIMITED_MATCH_BUDGET);
+    }
+
+    // Gives no match once the comparisons add up to the budget
+    private AddressRange getBestMatch(List<AddressRange> reuseHints, byte[] hunkDesiredBytes,
+            int hunkSpot, int minUsefulLength, long preferNear, LongAdder comparisons,
+            long budget) {
+        long remaining = budget - comparisons.sum();
+        if (remaining <= 0) {
+            return NO_MATCH;
+        }
+
+        // Small hints are quicker to just search through than building the index
+        // for the whole source. Once it's built though we might as well use it. The two
+        // stop at different places when the budget runs out though so with a budget, only
+        // the hints decide which is used. Otherwise whether another writer sharing the
+        // source had built the index yet would change the patch
+        boolean smallHints = getHintedBytes(reuseHints) < BpsWriter.MIN_HINT_SIZE_TO_INDEX;
+        boolean useIndex = budget == BpsWriter.UNLIMITED_MATCH_BUDGET
+                ? writer.hasSourceMatchIndex() || !smallHints : !smallHints;
+        if (!useIndex) {
+            return SourceMatchIndex.scanForLongestMatch(writer.sourceBytes, hunkDesiredBytes,
+                    hunkSpot, reuseHints, preferNear, comparisons, remaining);
+        }
+        return writer.getSourceMatchIndex().findLongestMatch(hunkDesiredBytes, hunkSpot,
+                minUsefulLength, reuseHints, preferNear, comparisons, remaining);
+    }
+
+    private static long getHintedBytes(List<AddressRange> reuseHints) {
+        long hintedBytes = 0;
+        for (AddressRange range : reuseHints) {
+            hintedBytes += Math.max(0, range.size());
+        }
+        return hintedBytes;
+    }
+
+    // A finished block whose bytes are in the arena along with the runs in it and the
+    // settings in place when it was finished
+    private static class FinishedBlock {
+        private final int destinationIndex;
+        private final String name;
+        private final int start;
+        private final int length;
+        private final List<AddressRange> reuseHints;
+        private final int minMatchLength;
+        private final MatchEffort effort;
+        private final long matchBudget;
+        // Offsets into the block
+        private final int[] runStarts;
+        private final int[] runLengths;
+        private final byte[] runBytes;
+
+        FinishedBlock(int destinationIndex, String name, int start, int length,
+                List<AddressRange> reuseHints, int minMatchLength, MatchEffort effort,
+                long matchBudget, int[] runStarts, int[] runLengths, byte[] runBytes) {
+            this.destinationIndex = destinationIndex;
+            this.name = name;
+            this.start = start;
+            this.length = length;
+            this.reuseHints = new ArrayList<>(reuseHints);
+            this.minMatchLength = minMatchLength;
+            this.effort = effort;
+            this.matchBudget = matchBudget;
+            this.runStarts = runStarts;
+            this.runLengths = runLengths;
+            this.runBytes = runBytes;
+        }
+
+        int firstRunEndingAfter(int blockOffset) {
+            int low = 0;
+            int high = runStarts.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (runStarts[mid] + runLengths[mid] <= blockOffset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    // The cheapest ways found so far to get to each spot in the block
+    private static class OptimalParse {
+        private final int[] selfReadCosts;
+        private final int[] copyCosts;
+        // Where the last source copy on the cheapest path to the spot ended
+        private final int[] selfReadLastCopyEnds;
+        private final int[] copyLastCopyEnds;
+        // How we got to each spot. Self reads always come from the spot before them
+        private final boolean[] selfReadAfterCopy;
+        private final int[] copyStarts;
+        private final int[] copyAddresses;
+        private final boolean[] copyAfterSelfRead;
+
+        OptimalParse(int length) {
+            selfReadCosts = new int[length + 1];
+            copyCosts = new int[length + 1];
+            selfReadLastCopyEnds = new int[length + 1];
+            copyLastCopyEnds = new int[length + 1];
+            selfReadAfterCopy = new boolean[length + 1];
+            copyStarts = new int[length + 1];
+            copyAddresses = new int[length + 1];
+            copyAfterSelfRead = new boolean[length + 1];
+            Arrays.fill(selfReadCosts, UNREACHED);
+            Arrays.fill(copyCosts, UNREACHED);
+            // Starting the block is like coming off a copy. We don't know where the copies
+            // before this block end so offsets are estimated from the start of the source
+            copyCosts[0] = 0;
+        }
+
+        void relaxSelfRead(int spot, int costSoFar, int lastCopyEnd, boolean fromCopy) {
+            int cost = addCost(costSoFar, 1);
+            if (cost < selfReadCosts[spot + 1]) {
+                selfReadCosts[spot + 1] = cost;
+                selfReadLastCopyEnds[spot + 1] = lastCopyEnd;
+                selfReadAfterCopy[spot + 1] = fromCopy;
+            }
+        }
+
+        void relaxCopy(int spot, int copyLength, int address, boolean sourceRead, int costSoFar,
+                int lastCopyEnd, boolean fromSelfRead) {
+            if (costSoFar == UNREACHED) {
+                return;
+            }
+            int end = spot + copyLength;
+            int cost = costSoFar + BpsHunk.sevenBitEncodedSize(((long) copyLength - 1) << 2);
+            int copyEnd = lastCopyEnd;
+            // Copies from the same place they go become source reads which have no offset
+            if (!sourceRead) {
+                cost += SourceMatchIndex.offsetCost(address, lastCopyEnd);
+                copyEnd = address + copyLength;
+            }
+            if (cost < copyCosts[end]) {
+                copyCosts[end] = cost;
+                copyLastCopyEnds[end] = copyEnd;
+                copyStarts[end] = spot;
+                copyAddresses[end] = address;
+                copyAfterSelfRead[end] = fromSelfRead;
+            }
+        }
+    }
+
+    // Splits the pending blocks in half until each task has just one to match. Each block
+    // gets its own store so nothing is shared between the tasks
+    private class MatchBlocksTask extends RecursiveAction {
+        private final HunkStore[] results;
+        private final int first;
+        private final int end;
+
+        MatchBlocksTask(HunkStore[] results, int first, int end) {
+            this.results = results;
+            this.first = first;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - first == 1) {
+                HunkStore blockHunks = new HunkStore(payloads);
+                createHunksBasedOnHints(pendingBlocks.get(first), false, blockHunks);
+                results[first] = blockHunks;
+                return;
+            }
+
+            int middle = (first + end) >>> 1;
+            invokeAll(new MatchBlocksTask(results, first, middle),
+                    new MatchBlocksTask(results, middle, end));
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+// Hashes of fixed size chunks of the blocks already finalized so a block that repeats one of
+// them, like code or data queued again at another address, can be target copied from it
+// without searching byte by byte. Only chunks at multiples of the chunk size from the start
+// of their block are hashed so it's one lookup per chunk. Blocks repeated whole line up
+// with that and a hit is extended both ways as far as the bytes match. The blocks' bytes
+// are read back from the arena they were appended to when a hit is checked
+class BlockDedupeIndex {
+    static final int CHUNK_SIZE = 0x20;
+
+    private static final int INITIAL_SLOTS = 0x1000;
+    private static final int INITIAL_ENTRIES = 0x800;
+    private static final int NO_ENTRY = -1;
+    private static final int SCRATCH_SIZE = 0x100;
+
+    private final PayloadArena payloads;
+
+    private int[] blockAddresses;
+    private int[] blockArenaStarts;
+    private int[] blockLengths;
+    private int blocks;
+
+    // Open addressed table of entry numbers keyed by the hash of their chunk. Only the
+    // lowest address chunk with each hash is kept since that can be copied by the most
+    private int[] slots;
+    private long[] entryHashes;
+    private int[] entryBlocks;
+    private int[] entryOffsets;
+    private int entries;
+
+    private int matchAddress;
+    private int matchStart;
+    private final byte[] scratch;
+
+    BlockDedupeIndex(PayloadArena payloads) {
+        this.payloads = payloads;
+        blockAddresses = new int[16];
+        blockArenaStarts = new int[16];
+        blockLengths = new int[16];
+        blocks = 0;
+
+        slots = new int[INITIAL_SLOTS];
+        Arrays.fill(slots, NO_ENTRY);
+        entryHashes = new long[INITIAL_ENTRIES];
+        entryBlocks = new int[INITIAL_ENTRIES];
+        entryOffsets = new int[INITIAL_ENTRIES];
+        entries = 0;
+        scratch = new byte[SCRATCH_SIZE];
+    }
+
+    // Forgets all the blocks but keeps the tables to use again
+    void clear() {
+        blocks = 0;
+        Arrays.fill(slots, NO_ENTRY);
+        entries = 0;
+        matchAddress = 0;
+        matchStart = 0;
+    }
+
+    // The block's bytes must stay in the arena at the given offset
+    void addBlock(int destinationIndex, int arenaStart, int length) {
+        if (blocks == blockAddresses.length) {
+            blockAddresses = Arrays.copyOf(blockAddresses, blocks * 2);
+            blockArenaStarts = Arrays.copyOf(blockArenaStarts, blocks * 2);
+            blockLengths = Arrays.copyOf(blockLengths, blocks * 2);
+        }
+        int block = blocks++;
+        blockAddresses[block] = destinationIndex;
+        blockArenaStarts[block] = arenaStart;
+        blockLengths[block] = length;
+
+        byte[] chunk = new byte[CHUNK_SIZE];
+        for (int offset = 0; offset + CHUNK_SIZE <= length; offset += CHUNK_SIZE) {
+            payloads.read(arenaStart + offset, chunk, 0, CHUNK_SIZE);
+            // Runs are already made into fills which are smaller than copies of them
+            if (!isRepeatedByte(chunk, 0)) {
+                addChunk(hashChunk(chunk, 0), block, offset);
+            }
+        }
+    }
+
+    private void addChunk(long hash, int block, int offset) {
+        int slot = findSlot(hash);
+        if (slots[slot] != NO_ENTRY) {
+            int entry = slots[slot];
+            if (blockAddresses[block] + offset < getEntryAddress(entry)) {
+                entryBlocks[entry] = block;
+                entryOffsets[entry] = offset;
+            }
+            return;
+        }
+
+        if (entries == entryHashes.length) {
+            entryHashes = Arrays.copyOf(entryHashes, entries * 2);
+            entryBlocks = Arrays.copyOf(entryBlocks, entries * 2);
+            entryOffsets = Arrays.copyOf(entryOffsets, entries * 2);
+        }
+        entryHashes[entries] = hash;
+        entryBlocks[entries] = block;
+        entryOffsets[entries] = offset;
+        slots[slot] = entries++;
+        // Keep the table at most half full so the probes stay short
+        if (entries * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+    }
+
+    private void rehash(int slotCount) {
+        slots = new int[slotCount];
+        Arrays.fill(slots, NO_ENTRY);
+        for (int entry = 0; entry < entries; entry++) {
+            slots[findSlot(entryHashes[entry])] = entry;
+        }
+    }
+
+    // The slot with the hash or the empty one it would go in
+    private int findSlot(long hash) {
+        int mask = slots.length - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (slots[slot] != NO_ENTRY && entryHashes[slots[slot]] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int getEntryAddress(int entry) {
+        return blockAddresses[entryBlocks[entry]] + entryOffsets[entry];
+    }
+
+    // Returns the length of the match for the chunk of bytes at the offset or 0 if there
+    // isn't one in a block entirely before the destination index. The match is extended
+    // back as far as lowestStart and forward to the end of the bytes. Where it starts in the
+    // bytes and the address to copy from are available through getMatchStart and
+    // getMatchAddress. Adds the bytes it compared to the counter
+    int findMatch(byte[] bytes, int offset, int lowestStart, int destinationIndex,
+            LongAdder comparisons) {
+        if (bytes.length - offset < CHUNK_SIZE || isRepeatedByte(bytes, offset)) {
+            return 0;
+        }
+        int entry = slots[findSlot(hashChunk(bytes, offset))];
+        if (entry == NO_ENTRY) {
+            return 0;
+        }
+        int block = entryBlocks[entry];
+        if (blockAddresses[block] + blockLengths[block] > destinationIndex) {
+            return 0;
+        }
+
+        // Hashes can collide so the chunk itself has to be checked too
+        int chunkOffset = entryOffsets[entry];
+        int arenaOffset = blockArenaStarts[block] + chunkOffset;
+        int forward = matchForward(arenaOffset, bytes, offset,
+                Math.min(blockLengths[block] - chunkOffset, bytes.length - offset));
+        if (forward < CHUNK_SIZE) {
+            comparisons.add(forward + 1);
+            return 0;
+        }
+        int back = matchBackward(arenaOffset, bytes, offset,
+                Math.min(chunkOffset, offset - lowestStart));
+        comparisons.add(forward + back + 1);
+
+        matchStart = offset - back;
+        matchAddress = getEntryAddress(entry) - back;
+        return back + forward;
+    }
+
+    int getMatchAddress() {
+        return matchAddress;
+    }
+
+    int getMatchStart() {
+        return matchStart;
+    }
+
+    // How many of the bytes from the offset on match the arena from arenaOffset on
+    private int matchForward(int arenaOffset, byte[] bytes, int offset, int max) {
+        int matched = 0;
+        while (matched < max) {
+            int toRead = Math.min(scratch.length, max - matched);
+            payloads.read(arenaOffset + matched, scratch, 0, toRead);
+            for (int index = 0; index < toRead; index++) {
+                if (scratch[index] != bytes[offset + matched + index]) {
+                    return matched + index;
+                }
+            }
+            matched += toRead;
+        }
+        return matched;
+    }
+
+    // How many of the bytes before the offset match the arena before arenaOffset
+    private int matchBackward(int arenaOffset, byte[] bytes, int offset, int max) {
+        int matched = 0;
+        while (matched < max) {
+            int toRead = Math.min(scratch.length, max - matched);
+            payloads.read(arenaOffset - matched - toRead, scratch, 0, toRead);
+            for (int index = 0; index < toRead; index++) {
+                if (scratch[toRead - 1 - index] != bytes[offset - matched - 1 - index]) {
+                    return matched + index;
+                }
+            }
+            matched += toRead;
+        }
+        return matched;
+    }
+
+    private static boolean isRepeatedByte(byte[] bytes, int offset) {
+        for (int index = 1; index < CHUNK_SIZE; index++) {
+            if (bytes[offset + index] != bytes[offset]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a over the chunk
+    private static long hashChunk(byte[] bytes, int offset) {
+        long hash = 0xCBF29CE484222325L;
+        for (int index = offset; index < offset + CHUNK_SIZE; index++) {
+            hash ^= bytes[index] & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,182 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+// Makes many patches against the same source at once. Each job gets a writer of its own to
+// queue its blocks into and write its patch with. When a job finishes its writer is reset
+// and given to a later job so the writers' buffers are only allocated for as many jobs as
+// run at the same time
+public class BpsBatchWriter implements Closeable {
+    // Builds and writes one patch with the writer it is given. What it returns is what the
+    // job's future completes with. The writer's stats only cover this job
+    @FunctionalInterface
+    public interface PatchJob<T> {
+        T run(BpsWriter writer) throws IOException;
+    }
+
+    private final BpsSource source;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    // Applied once to each writer when it is made. Writers keep their settings when they
+    // are reset so jobs should leave them as this sets them
+    private final Consumer<BpsWriter> writerSetup;
+    private final ArrayDeque<BpsWriter> idleWriters;
+    private boolean closed;
+
+    public BpsBatchWriter(BpsSource source, int threads) {
+        this(source, threads, writer -> {
+        });
+    }
+
+    // Runs up to the given number of jobs at once on threads of its own
+    public BpsBatchWriter(BpsSource source, int threads, Consumer<BpsWriter> writerSetup) {
+        this(source, createPool(threads), true, writerSetup);
+    }
+
+    // Runs the jobs on the executor which is left running when the batch is closed. Any
+    // executor works including ones that start a virtual thread for each job
+    public BpsBatchWriter(BpsSource source, ExecutorService executor,
+            Consumer<BpsWriter> writerSetup) {
+        this(source, executor, false, writerSetup);
+    }
+
+    private BpsBatchWriter(BpsSource source, ExecutorService executor, boolean ownsExecutor,
+            Consumer<BpsWriter> writerSetup) {
+        this.source = source;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.writerSetup = writerSetup;
+        idleWriters = new ArrayDeque<>();
+        closed = false;
+    }
+
+    private static ExecutorService createPool(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Batch writer needs at least 1 thread: " + threads);
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    public BpsSource getSource() {
+        return source;
+    }
+
+    // IOExceptions from the job complete the future exceptionally wrapped in an
+    // UncheckedIOException. Throws an IllegalStateException once the batch is closed
+    public <T> CompletableFuture<T> submit(PatchJob<T> job) {
+        // Submitted under the same lock close takes so an owned pool can't be shut down
+        // between the check and the job being handed to it
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Batch writer has already been closed");
+            }
+            return CompletableFuture.supplyAsync(() -> runJob(job), executor);
+        }
+    }
+
+    private <T> T runJob(PatchJob<T> job) {
+        BpsWriter writer = takeWriter();
+        T result;
+        try {
+            result = job.run(writer);
+        } catch (IOException e) {
+            throw returnWriterAfterFailure(writer, new UncheckedIOException(e));
+        } catch (RuntimeException e) {
+            throw returnWriterAfterFailure(writer, e);
+        } catch (Error e) {
+            throw returnWriterAfterFailure(writer, e);
+        }
+        // The job's patch is already done so a writer that can't be reset is only dropped
+        returnWriter(writer);
+        return result;
+    }
+
+    // Keeps the job's failure as what its future completes with
+    private <E extends Throwable> E returnWriterAfterFailure(BpsWriter writer, E failure) {
+        IOException resetFailure = returnWriter(writer);
+        if (resetFailure != null) {
+            failure.addSuppressed(resetFailure);
+        }
+        return failure;
+    }
+
+    private BpsWriter takeWriter() {
+        synchronized (this) {
+            BpsWriter writer = idleWriters.poll();
+            if (writer != null) {
+                return writer;
+            }
+        }
+        BpsWriter writer = new BpsWriter(source);
+        writerSetup.accept(writer);
+        return writer;
+    }
+
+    // Writers that can't be reset are closed and dropped rather than given to another job.
+    // Returns why the writer couldn't be reset or closed or null if nothing went wrong
+    private IOException returnWriter(BpsWriter writer) {
+        try {
+            writer.reset();
+        } catch (IOException e) {
+            try {
+                writer.close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            return e;
+        }
+        synchronized (this) {
+            if (!closed) {
+                idleWriters.push(writer);
+                return null;
+            }
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            return e;
+        }
+        return null;
+    }
+
+    // Jobs already submitted still run. Their writers are closed as they finish
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            if (ownsExecutor) {
+                executor.shutdown();
+            }
+        }
+        IOException failure = null;
+        while (true) {
+            BpsWriter writer;
+            synchronized (this) {
+                writer = idleWriters.poll();
+            }
+            if (writer == null) {
+                break;
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
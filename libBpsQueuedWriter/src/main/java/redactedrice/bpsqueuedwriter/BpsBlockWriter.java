@@ -0,0 +1,76 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import redactedrice.gbcframework.QueuedWriter;
+import redactedrice.gbcframework.addressing.AddressRange;
+
+// Writes blocks into a BpsWriter from another thread. Each block writer keeps its own hunks
+// and self read data so any number of them can be written to at once. They only share the
+// writer's source index and blanks. The hunks are merged into the writer's when the patch
+// is written which is also when overlaps with blocks from other writers are found
+public class BpsBlockWriter implements QueuedWriter {
+    private final BpsWriter writer;
+    private final PayloadArena payloads;
+    private HunkStore hunks;
+    private final BlockBuilder blockBuilder;
+
+    BpsBlockWriter(BpsWriter writer, PayloadArena payloads) {
+        this.writer = writer;
+        this.payloads = payloads;
+        hunks = new HunkStore(payloads);
+        blockBuilder = new BlockBuilder(writer, payloads, false);
+    }
+
+    @Override
+    public void append(byte... bytes) throws IOException {
+        blockBuilder.append(bytes);
+    }
+
+    @Override
+    public String getCurrentBlockName() {
+        return blockBuilder.getCurrentBlockName();
+    }
+
+    @Override
+    public void startNewBlock(int segmentStartAddress) {
+        startNewBlock(segmentStartAddress, BpsHunkSelfRead.DEFAULT_NAME);
+    }
+
+    @Override
+    public void startNewBlock(int segmentStartAddress, String segmentName) {
+        startNewBlock(segmentStartAddress, segmentName, null);
+    }
+
+    @Override
+    public void startNewBlock(int segmentStartAddress, List<AddressRange> reuseHints) {
+        startNewBlock(segmentStartAddress, BpsHunkSelfRead.DEFAULT_NAME, reuseHints);
+    }
+
+    @Override
+    public void startNewBlock(int segmentStartAddress, String segmentName,
+            List<AddressRange> reuseHints) {
+        // Only checks against the other blocks from this writer
+        blockBuilder.finalizeSelfReadBeingCreated(hunks);
+        blockBuilder.startNewBlock(segmentStartAddress, segmentName, reuseHints, false);
+    }
+
+    @Override
+    public void queueBlankedBlock(AddressRange range) {
+        writer.queueBlankedBlock(range);
+    }
+
+    PayloadArena getPayloads() {
+        return payloads;
+    }
+
+    // Finalizes and matches the blocks written so far and gives their hunks
+    HunkStore finishHunks(ForkJoinPool matchPool) {
+        blockBuilder.finalizeSelfReadBeingCreated(hunks);
+        hunks = blockBuilder.finishPendingBlocks(hunks, matchPool);
+        return hunks;
+    }
+}
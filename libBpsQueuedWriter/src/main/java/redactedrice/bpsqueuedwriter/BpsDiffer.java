@@ -0,0 +1,226 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import redactedrice.bpsqueuedwriter.BpsWriter.BpsHunkCopyType;
+
+// Builds a BpsWriter holding the hunks to turn a source into an already finished target
+// instead of queuing the changes block by block. Unchanged runs become source reads,
+// data found elsewhere in the source or earlier in the target becomes source/target copies
+// and everything else is self read. Matches are found through hash chains with a capped
+// depth so the whole thing stays linear in the size of the files
+public class BpsDiffer {
+    // Shortest copy we will emit instead of self reading the bytes
+    static final int MIN_COPY_LENGTH = BpsWriter.DEFAULT_MIN_MATCH_LENGTH;
+    // Shortest unchanged run that is worth breaking up a self read for
+    static final int MIN_SOURCE_READ_IN_SELF_READ = 3;
+    // How many previous occurrences of the same hash we check before giving up
+    static final int MAX_CHAIN_DEPTH = 16;
+
+    private static final int HASH_BITS = 18;
+    private static final int HASH_BYTES = 4;
+
+    private final ByteBuffer source;
+    private final ByteBuffer target;
+    private final int sourceLength;
+    private final int targetLength;
+
+    private final HashChains sourceChains;
+    private final HashChains targetChains;
+
+    private int bestMatchAddress;
+    private BpsHunkCopyType bestMatchType;
+
+    private BpsDiffer(ByteBuffer source, ByteBuffer target) {
+        this.source = source;
+        this.target = target;
+        sourceLength = source.limit();
+        targetLength = target.limit();
+
+        sourceChains = new HashChains(sourceLength);
+        for (int i = 0; i + HASH_BYTES <= sourceLength; i++) {
+            sourceChains.insert(hashAt(source, i), i);
+        }
+        targetChains = new HashChains(targetLength);
+    }
+
+    public static BpsWriter diff(byte[] sourceBytes, byte[] targetBytes) {
+        BpsWriter writer = new BpsWriter(sourceBytes);
+        new BpsDiffer(ByteBuffer.wrap(sourceBytes), ByteBuffer.wrap(targetBytes))
+                .addHunksTo(writer);
+        return writer;
+    }
+
+    public static BpsWriter diff(Path sourceFile, Path targetFile) throws IOException {
+        try (FileChannel sourceChannel = FileChannel.open(sourceFile, StandardOpenOption.READ);
+                FileChannel targetChannel = FileChannel.open(targetFile,
+                        StandardOpenOption.READ)) {
+            MappedByteBuffer source = sourceChannel.map(MapMode.READ_ONLY, 0,
+                    sourceChannel.size());
+            MappedByteBuffer target = targetChannel.map(MapMode.READ_ONLY, 0,
+                    targetChannel.size());
+
+            // The writer reads the same mapping so the source is never copied to the heap
+            BpsWriter writer = new BpsWriter(new BpsSource(source));
+            new BpsDiffer(source, target).addHunksTo(writer);
+            return writer;
+        }
+    }
+
+    private void addHunksTo(BpsWriter writer) {
+        writer.setTargetLength(targetLength);
+
+        int selfReadStart = -1;
+        int index = 0;
+        while (index < targetLength) {
+            // Unchanged bytes are read straight from the source
+            int unchanged = countUnchanged(index);
+            if (unchanged > 0 && (selfReadStart < 0 || unchanged >= MIN_SOURCE_READ_IN_SELF_READ)) {
+                selfReadStart = flushSelfRead(writer, selfReadStart, index);
+                writer.newSourceRead(index, unchanged);
+                // No need to track these for target copies since copying the same
+                // bytes from the source works just as well
+                index += unchanged;
+                continue;
+            }
+
+            // Otherwise see if the bytes are somewhere else in the source or
+            // already written in the target
+            int matchLength = findBestMatch(index);
+            if (matchLength >= MIN_COPY_LENGTH) {
+                selfReadStart = flushSelfRead(writer, selfReadStart, index);
+                writer.newCopyHunk(index, bestMatchType, matchLength, bestMatchAddress);
+                index = advance(index, matchLength);
+                continue;
+            }
+
+            // Nothing to reuse so it will need to be self read
+            if (selfReadStart < 0) {
+                selfReadStart = index;
+            }
+            index = advance(index, 1);
+        }
+        flushSelfRead(writer, selfReadStart, index);
+    }
+
+    private int flushSelfRead(BpsWriter writer, int selfReadStart, int selfReadEnd) {
+        if (selfReadStart >= 0) {
+            byte[] data = new byte[selfReadEnd - selfReadStart];
+            target.get(selfReadStart, data);
+            writer.newSelfRead(selfReadStart, data);
+        }
+        return -1;
+    }
+
+    // Moves past bytes that are now written to the target, making them available
+    // for target copies
+    private int advance(int index, int count) {
+        int end = index + count;
+        for (; index < end; index++) {
+            if (index + HASH_BYTES <= targetLength) {
+                targetChains.insert(hashAt(target, index), index);
+            }
+        }
+        return end;
+    }
+
+    private int countUnchanged(int index) {
+        int end = Math.min(sourceLength, targetLength);
+        if (index >= end || source.get(index) != target.get(index)) {
+            return 0;
+        }
+        // Let the buffers do the bulk compare for long runs
+        int mismatch = source.slice(index, end - index).mismatch(target.slice(index, end - index));
+        return mismatch < 0 ? end - index : mismatch;
+    }
+
+    private int findBestMatch(int index) {
+        if (index + HASH_BYTES > targetLength) {
+            return 0;
+        }
+        int hash = hashAt(target, index);
+        int bestLength = 0;
+
+        // Prefer the source when they tie since it doesn't depend on anything we wrote
+        for (int candidate : sourceChains.candidates(hash)) {
+            if (candidate < 0) {
+                break;
+            }
+            int length = matchLength(source, candidate, sourceLength, index);
+            if (length > bestLength) {
+                bestLength = length;
+                bestMatchAddress = candidate;
+                bestMatchType = BpsHunkCopyType.SOURCE_COPY;
+            }
+        }
+
+        // Target copies are read as they are written so they can overlap the bytes
+        // being written. Since we have the whole target we can just compare against it
+        for (int candidate : targetChains.candidates(hash)) {
+            if (candidate < 0) {
+                break;
+            }
+            int length = matchLength(target, candidate, targetLength, index);
+            if (length > bestLength) {
+                bestLength = length;
+                bestMatchAddress = candidate;
+                bestMatchType = BpsHunkCopyType.TARGET_COPY;
+            }
+        }
+        return bestLength;
+    }
+
+    private int matchLength(ByteBuffer from, int fromIndex, int fromLength, int index) {
+        int max = Math.min(fromLength - fromIndex, targetLength - index);
+        int count = 0;
+        while (count < max && from.get(fromIndex + count) == target.get(index + count)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int hashAt(ByteBuffer buffer, int index) {
+        int value = buffer.getInt(index);
+        return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    // Most recent positions for each hash linked to the positions before them
+    private static class HashChains {
+        private final int[] heads;
+        private final int[] previous;
+        // Reused for returning candidates so we don't allocate per lookup
+        private final int[] found;
+
+        HashChains(int length) {
+            heads = new int[1 << HASH_BITS];
+            Arrays.fill(heads, -1);
+            previous = new int[Math.max(length, 1)];
+            found = new int[MAX_CHAIN_DEPTH];
+        }
+
+        void insert(int hash, int index) {
+            previous[index] = heads[hash];
+            heads[hash] = index;
+        }
+
+        // Ends with -1 if there are fewer than the max depth
+        int[] candidates(int hash) {
+            int next = heads[hash];
+            for (int i = 0; i < found.length; i++) {
+                found[i] = next;
+                if (next >= 0) {
+                    next = previous[next];
+                }
+            }
+            return found;
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package redactedrice.bpsqueuedwriter;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import redactedrice.gbcframework.utils.ByteUtils;
@@ -62,9 +61,9 @@ public abstract class BpsHunk implements Comparable<BpsHunk>, Cloneable {
 
     public abstract void apply(byte[] targetBytes, byte[] originalBytes);
 
-    public abstract void write(ByteArrayOutputStream bpsOs) throws IOException;
+    public abstract void write(BpsPatchOutput bpsOs) throws IOException;
 
-    protected void checkDestinationIndex(ByteArrayOutputStream bpsOs) {
+    protected void checkDestinationIndex(BpsPatchOutput bpsOs) {
         // TODO: Add a curr index if we want to do this check
         // if (bpsOs.size() != destinationIndex)
         // {
@@ -75,11 +74,21 @@ public abstract class BpsHunk implements Comparable<BpsHunk>, Cloneable {
         // }
     }
 
-    protected void writeHunkHeader(ByteArrayOutputStream bpsOs) throws IOException {
+    protected void writeHunkHeader(BpsPatchOutput bpsOs) throws IOException {
         // We know the length is at least 1
-        long hunkLength = (((long) getLength() & 0xFFFF) - 1) << 2;
+        long hunkLength = ((long) getLength() - 1) << 2;
         long hunkValue = ((long) getType().getValue()) & 0xFF;
-        bpsOs.write(ByteUtils.sevenBitEncode(hunkLength + hunkValue));
+        bpsOs.writeNumber(hunkLength + hunkValue);
+    }
+
+    // Number of bytes the value takes when encoded as a BPS number
+    static int sevenBitEncodedSize(long value) {
+        int size = 1;
+        while (value >= 0x80) {
+            value = (value >> 7) - 1;
+            size++;
+        }
+        return size;
     }
 
     public String getName() {
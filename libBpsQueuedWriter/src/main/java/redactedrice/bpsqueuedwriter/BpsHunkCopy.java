@@ -1,9 +1,7 @@
 package redactedrice.bpsqueuedwriter;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.EnumMap;
 
 import redactedrice.bpsqueuedwriter.BpsWriter.BpsHunkCopyType;
 import redactedrice.gbcframework.utils.ByteUtils;
@@ -11,9 +9,6 @@ import redactedrice.gbcframework.utils.ByteUtils;
 public class BpsHunkCopy extends BpsHunk {
     public static final String DEFAULT_NAME = "UNNAMED_COPY_HUNK";
 
-    // Do this as an enum map for future proofing
-    private static EnumMap<BpsHunkType, Integer> prevVals = new EnumMap<>(BpsHunkType.class);
-
     private int copyFromIndex;
 
     public BpsHunkCopy(int destinationIndex, BpsHunkCopyType type, int length, int copyFromIndex) {
@@ -37,7 +32,8 @@ public class BpsHunkCopy extends BpsHunk {
     @Override
     public boolean tryExtend(BpsHunk nextHunk) {
         // TODO: More logic for target to make sure we don't make it too large or anything
-        if (nextHunk instanceof BpsHunkCopy && doesHunkAlign(nextHunk)) {
+        if (nextHunk instanceof BpsHunkCopy && nextHunk.getType() == getType()
+                && doesHunkAlign(nextHunk)) {
             if (copyFromIndex + getLength() == ((BpsHunkCopy) nextHunk).copyFromIndex) {
                 extendCommonData(nextHunk);
                 // Nothing else to do
@@ -55,8 +51,12 @@ public class BpsHunkCopy extends BpsHunk {
                     getLength());
             break;
         case TARGET_COPY:
-            ByteUtils.copyBytes(targetBytes, getDestinationIndex(), targetBytes, copyFromIndex,
-                    getLength());
+            // Target copies read the target as it is written so they can overlap the
+            // bytes they are writing (e.g. to repeat a pattern) which means we have to
+            // copy one byte at a time
+            for (int i = 0; i < getLength(); i++) {
+                targetBytes[getDestinationIndex() + i] = targetBytes[copyFromIndex + i];
+            }
             break;
         default:
             throw new IllegalArgumentException(
@@ -65,24 +65,19 @@ public class BpsHunkCopy extends BpsHunk {
     }
 
     @Override
-    public void write(ByteArrayOutputStream bpsOs) throws IOException {
+    public void write(BpsPatchOutput bpsOs) throws IOException {
         checkDestinationIndex(bpsOs);
         writeHunkHeader(bpsOs);
 
-        // These are stored as offsets from the last used value
-        // instead of absolute values. Convert the absolute value
-        // to the offset then update the last used value
-        int offset = copyFromIndex - prevVals.get(getType());
-        prevVals.put(getType(), copyFromIndex + getLength()); // Increments offset while it reads
-
-        bpsOs.write(ByteUtils.sevenBitEncodeSigned(offset));
+        // These are stored as offsets from the last used value instead of absolute values.
+        // The output keeps track of them for the patch it is writing
+        bpsOs.writeCopyOffset(getType(), copyFromIndex, getLength());
     }
 
+    // Each patch output now starts its copy offsets from 0 on its own
+    @Deprecated
     public static void setOffsetsForWriting() {
-        // Set all values to 0
-        for (BpsHunkCopyType type : BpsHunkCopyType.values()) {
-            prevVals.put(type.asBpsHunkType(), 0);
-        }
+        // Nothing to reset
     }
 
     public int getCopyFromIndex() {
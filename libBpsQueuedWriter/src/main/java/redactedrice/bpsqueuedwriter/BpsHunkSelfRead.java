@@ -1,7 +1,6 @@
 package redactedrice.bpsqueuedwriter;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
@@ -61,7 +60,7 @@ public class BpsHunkSelfRead extends BpsHunk {
     }
 
     @Override
-    public void write(ByteArrayOutputStream bpsOs) throws IOException {
+    public void write(BpsPatchOutput bpsOs) throws IOException {
         checkDestinationIndex(bpsOs);
         writeHunkHeader(bpsOs);
         for (byte[] entry : data) {
@@ -1,7 +1,6 @@
 package redactedrice.bpsqueuedwriter;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import redactedrice.gbcframework.utils.ByteUtils;
@@ -34,7 +33,7 @@ public class BpsHunkSourceRead extends BpsHunk {
     }
 
     @Override
-    public void write(ByteArrayOutputStream bpsOs) throws IOException {
+    public void write(BpsPatchOutput bpsOs) throws IOException {
         checkDestinationIndex(bpsOs);
         writeHunkHeader(bpsOs);
         // Nothing else to write
@@ -0,0 +1,17 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.nio.ByteBuffer;
+
+// Receives the hunks of a patch in order as they are read. Copy offsets have already
+// been converted from the relative values stored in the patch to absolute indexes
+public interface BpsHunkVisitor {
+    void sourceRead(int destinationIndex, int length);
+
+    // The data is a read only view into the patch
+    void selfRead(int destinationIndex, ByteBuffer data);
+
+    void sourceCopy(int destinationIndex, int length, int copyFromIndex);
+
+    void targetCopy(int destinationIndex, int length, int copyFromIndex);
+}
@@ -0,0 +1,183 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+import redactedrice.bpsqueuedwriter.BpsHunk.BpsHunkType;
+
+// Buffered output for the patch bytes that keeps a running CRC32 of everything
+// written so the patch never needs to be held in memory to checksum it. Also tracks
+// where the last copies written to it ended since copy offsets are relative to them
+// so each patch being written has its own. The channel is owned by the caller and is
+// not closed by this
+public class BpsPatchOutput {
+    static final int BUFFER_SIZE = 0x10000;
+    // Most bytes a 64 bit number can take when encoded
+    static final int MAX_NUMBER_SIZE = 10;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final CRC32 crc;
+    private long size;
+    private long lastSourceCopyEnd;
+    private long lastTargetCopyEnd;
+
+    public BpsPatchOutput(WritableByteChannel channel) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        crc = new CRC32();
+        size = 0;
+        lastSourceCopyEnd = 0;
+        lastTargetCopyEnd = 0;
+    }
+
+    public void write(int value) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put((byte) value);
+        size++;
+    }
+
+    public void write(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length <= buffer.remaining()) {
+            buffer.put(bytes, offset, length);
+        } else {
+            // Too big to be worth copying into the buffer so send it as is
+            flush();
+            ByteBuffer toWrite = ByteBuffer.wrap(bytes, offset, length);
+            crc.update(toWrite.duplicate());
+            writeFully(toWrite);
+        }
+        size += length;
+    }
+
+    // Copies bytes from the file straight into the buffer without going through the heap
+    public void transferFrom(FileChannel source, long position, long count) throws IOException {
+        while (count > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int toRead = (int) Math.min(count, buffer.remaining());
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + toRead);
+            while (buffer.hasRemaining()) {
+                int read = source.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file at " + position);
+                }
+                position += read;
+            }
+            buffer.limit(limit);
+            count -= toRead;
+            size += toRead;
+        }
+    }
+
+    // Writes a number using the BPS variable length encoding directly into the buffer
+    public void writeNumber(long value) throws IOException {
+        if (buffer.remaining() < MAX_NUMBER_SIZE) {
+            flush();
+        }
+        while (true) {
+            byte lowBits = (byte) (value & 0x7F);
+            value >>>= 7;
+            size++;
+            if (value == 0) {
+                buffer.put((byte) (lowBits | 0x80));
+                return;
+            }
+            buffer.put(lowBits);
+            value--;
+        }
+    }
+
+    // Signed numbers store the sign in the lowest bit
+    public void writeSignedNumber(long value) throws IOException {
+        writeNumber((Math.abs(value) << 1) | (value < 0 ? 1 : 0));
+    }
+
+    // Writes where the copy reads from as an offset from the end of the last copy of the
+    // same type written here
+    public void writeCopyOffset(BpsHunkType type, long copyFromIndex, long length)
+            throws IOException {
+        if (type == BpsHunkType.SOURCE_COPY) {
+            writeSignedNumber(copyFromIndex - lastSourceCopyEnd);
+            lastSourceCopyEnd = copyFromIndex + length;
+        } else if (type == BpsHunkType.TARGET_COPY) {
+            writeSignedNumber(copyFromIndex - lastTargetCopyEnd);
+            lastTargetCopyEnd = copyFromIndex + length;
+        } else {
+            throw new IllegalArgumentException(
+                    "Internal error: Copy offset written for a non copy hunk type: " + type);
+        }
+    }
+
+    public long getLastSourceCopyEnd() {
+        return lastSourceCopyEnd;
+    }
+
+    public long getLastTargetCopyEnd() {
+        return lastTargetCopyEnd;
+    }
+
+    // For carrying on from copies that were encoded somewhere else and written here as
+    // plain bytes
+    void setLastCopyEnds(long lastSourceCopyEnd, long lastTargetCopyEnd) {
+        this.lastSourceCopyEnd = lastSourceCopyEnd;
+        this.lastTargetCopyEnd = lastTargetCopyEnd;
+    }
+
+    public void writeLittleEndian32(long value) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            write((int) (value >> (8 * i)));
+        }
+    }
+
+    // Writes the value count times
+    public void fill(byte value, long count) throws IOException {
+        while (count > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int toFill = (int) Math.min(count, buffer.remaining());
+            for (int i = 0; i < toFill; i++) {
+                buffer.put(value);
+            }
+            count -= toFill;
+            size += toFill;
+        }
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer toWrite) throws IOException {
+        while (toWrite.hasRemaining()) {
+            channel.write(toWrite);
+        }
+    }
+
+    // CRC of all the bytes written so far
+    public long getCrc32() throws IOException {
+        flush();
+        return crc.getValue();
+    }
+
+    // Number of bytes written so far
+    public long size() {
+        return size;
+    }
+}
@@ -0,0 +1,149 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Applies BPS patches and checks patches against their source. All three CRCs are checked
+// as the patch is processed so a bad patch or the wrong source is always reported
+public class BpsPatcher {
+    private BpsPatcher() {
+        // Utility class
+    }
+
+    public static byte[] apply(byte[] source, byte[] patch) {
+        BpsReader reader = new BpsReader(ByteBuffer.wrap(patch));
+        byte[] target = new byte[reader.getTargetSize()];
+        apply(ByteBuffer.wrap(source), reader, ByteBuffer.wrap(target));
+        return target;
+    }
+
+    // Maps all three files so no copies of them are made on the heap
+    public static void apply(Path sourceFile, Path patchFile, Path targetFile)
+            throws IOException {
+        BpsReader reader = BpsReader.map(patchFile);
+        try (FileChannel sourceChannel = FileChannel.open(sourceFile, StandardOpenOption.READ);
+                FileChannel targetChannel = FileChannel.open(targetFile, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer source = sourceChannel.map(MapMode.READ_ONLY, 0, sourceChannel.size());
+            ByteBuffer target = targetChannel.map(MapMode.READ_WRITE, 0, reader.getTargetSize());
+            apply(source, reader, target);
+        }
+    }
+
+    // Writes the target to the buffer starting at its position. The positions of the
+    // buffers are not changed
+    public static void apply(ByteBuffer source, ByteBuffer patch, ByteBuffer target) {
+        apply(source, new BpsReader(patch), target);
+    }
+
+    private static void apply(ByteBuffer source, BpsReader reader, ByteBuffer target) {
+        ByteBuffer sourceView = source.slice().asReadOnlyBuffer();
+        ByteBuffer targetView = target.slice();
+        checkSourceAndPatch(reader, sourceView.remaining(),
+                Crc32Engine.getDefault().crc32(sourceView), Crc32Engine.getDefault());
+        if (targetView.remaining() < reader.getTargetSize()) {
+            throw new IllegalArgumentException("Target only has room for "
+                    + targetView.remaining() + " bytes but the patch creates "
+                    + reader.getTargetSize());
+        }
+
+        // Each hunk only depends on the ones before it so the target CRC can be
+        // updated as soon as it is written while it is likely still in the cache
+        CRC32 targetCrc = new CRC32();
+        reader.accept(new BpsHunkVisitor() {
+            @Override
+            public void sourceRead(int destinationIndex, int length) {
+                targetView.put(destinationIndex, sourceView, destinationIndex, length);
+                hashWritten(destinationIndex, length);
+            }
+
+            @Override
+            public void selfRead(int destinationIndex, ByteBuffer data) {
+                targetView.put(destinationIndex, data, 0, data.remaining());
+                hashWritten(destinationIndex, data.remaining());
+            }
+
+            @Override
+            public void sourceCopy(int destinationIndex, int length, int copyFromIndex) {
+                targetView.put(destinationIndex, sourceView, copyFromIndex, length);
+                hashWritten(destinationIndex, length);
+            }
+
+            @Override
+            public void targetCopy(int destinationIndex, int length, int copyFromIndex) {
+                if (copyFromIndex + length <= destinationIndex) {
+                    targetView.put(destinationIndex, targetView, copyFromIndex, length);
+                } else {
+                    // Overlapping copies repeat the bytes they have just written so they
+                    // have to go one at a time
+                    for (int i = 0; i < length; i++) {
+                        targetView.put(destinationIndex + i,
+                                targetView.get(copyFromIndex + i));
+                    }
+                }
+                hashWritten(destinationIndex, length);
+            }
+
+            private void hashWritten(int destinationIndex, int length) {
+                targetCrc.update(targetView.slice(destinationIndex, length));
+            }
+        });
+
+        if (targetCrc.getValue() != reader.getTargetCrc32()) {
+            throw new IllegalArgumentException(
+                    "Target CRC does not match the patch: " + crcMismatch(targetCrc.getValue(),
+                            reader.getTargetCrc32()));
+        }
+    }
+
+    // Checks that the patch is for the source and produces the target it claims without
+    // creating the target. The source and self read data is all that gets hashed
+    public static void verify(byte[] source, ByteBuffer patch) {
+        verify(ByteBuffer.wrap(source), patch);
+    }
+
+    // Uses the remaining bytes of the source without changing its position
+    public static void verify(ByteBuffer source, ByteBuffer patch) {
+        ByteBuffer sourceBytes = source.slice();
+        verify(sourceBytes, new SourceCrcTable(sourceBytes, Crc32Engine.getDefault()), patch);
+    }
+
+    static void verify(ByteBuffer source, SourceCrcTable sourceCrcs, ByteBuffer patch) {
+        BpsReader reader = new BpsReader(patch);
+        checkSourceAndPatch(reader, source.limit(), sourceCrcs.getSourceCrc32(),
+                Crc32Engine.getDefault());
+
+        long targetCrc = new BpsTargetView(source, sourceCrcs, reader.readHunkStore(),
+                reader.getPatch()).computeCrc32();
+        if (targetCrc != reader.getTargetCrc32()) {
+            throw new IllegalArgumentException("Target CRC does not match the patch: "
+                    + crcMismatch(targetCrc, reader.getTargetCrc32()));
+        }
+    }
+
+    private static void checkSourceAndPatch(BpsReader reader, int sourceSize, long sourceCrc,
+            Crc32Engine engine) {
+        if (!reader.isPatchCrcValid(engine)) {
+            throw new IllegalArgumentException("Patch CRC does not match the patch contents");
+        }
+        if (sourceSize != reader.getSourceSize()) {
+            throw new IllegalArgumentException("Source is " + sourceSize
+                    + " bytes but the patch expects " + reader.getSourceSize());
+        }
+        if (sourceCrc != reader.getSourceCrc32()) {
+            throw new IllegalArgumentException("Source CRC does not match the patch: "
+                    + crcMismatch(sourceCrc, reader.getSourceCrc32()));
+        }
+    }
+
+    private static String crcMismatch(long found, long expected) {
+        return String.format("found 0x%08X but expected 0x%08X", found, expected);
+    }
+}
@@ -0,0 +1,27 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight recorder event for one phase of a write or one block being finalized. Only
+// created through PhaseTimer
+@Name("redactedrice.bpsqueuedwriter.Phase")
+@Label("BPS Writer Phase")
+@Category("BPS Queued Writer")
+@Description("A block being turned into hunks or a step of writing the patch")
+@StackTrace(false)
+class BpsPhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Bytes")
+    @Description("Bytes of the block or the target the phase worked on")
+    @DataAmount
+    long bytes;
+}
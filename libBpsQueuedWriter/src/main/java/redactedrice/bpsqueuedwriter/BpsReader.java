@@ -0,0 +1,264 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import redactedrice.bpsqueuedwriter.BpsWriter.BpsHunkCopyType;
+
+// Parses a BPS patch either into BpsHunks or as a stream of hunk events. The patch
+// can be any ByteBuffer including a memory mapped file and is never copied
+public class BpsReader {
+    // Three CRCs of four bytes each
+    static final int FOOTER_SIZE = 12;
+
+    private final ByteBuffer patch;
+    private final int sourceSize;
+    private final int targetSize;
+    private final String metadata;
+    private final int hunksStart;
+    private final int hunksEnd;
+
+    // Used while reading through the patch
+    private int readIndex;
+
+    public BpsReader(ByteBuffer patch) {
+        this.patch = patch.slice().asReadOnlyBuffer();
+        if (this.patch.limit() < 4 + 3 + FOOTER_SIZE || this.patch.get(0) != 'B'
+                || this.patch.get(1) != 'P' || this.patch.get(2) != 'S'
+                || this.patch.get(3) != '1') {
+            throw new IllegalArgumentException("Patch is not a BPS patch: missing the BPS1 "
+                    + "header or too short (" + this.patch.limit() + " bytes)");
+        }
+
+        hunksEnd = this.patch.limit() - FOOTER_SIZE;
+        readIndex = 4;
+        sourceSize = readSize("source size");
+        targetSize = readSize("target size");
+        int metadataSize = readSize("metadata size");
+        checkAvailable(metadataSize, "metadata");
+        byte[] metadataBytes = new byte[metadataSize];
+        this.patch.get(readIndex, metadataBytes);
+        metadata = new String(metadataBytes, StandardCharsets.UTF_8);
+        readIndex += metadataSize;
+        hunksStart = readIndex;
+    }
+
+    public static BpsReader map(Path patchFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(patchFile, StandardOpenOption.READ)) {
+            return new BpsReader(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // The whole patch starting from its header
+    ByteBuffer getPatch() {
+        return patch;
+    }
+
+    public int getSourceSize() {
+        return sourceSize;
+    }
+
+    public int getTargetSize() {
+        return targetSize;
+    }
+
+    public String getMetadata() {
+        return metadata;
+    }
+
+    public long getSourceCrc32() {
+        return readCrc(hunksEnd);
+    }
+
+    public long getTargetCrc32() {
+        return readCrc(hunksEnd + 4);
+    }
+
+    public long getPatchCrc32() {
+        return readCrc(hunksEnd + 8);
+    }
+
+    public boolean isPatchCrcValid() {
+        return isPatchCrcValid(Crc32Engine.getDefault());
+    }
+
+    public boolean isPatchCrcValid(Crc32Engine engine) {
+        return engine.crc32(patch.slice(0, patch.limit() - 4)) == getPatchCrc32();
+    }
+
+    public List<BpsHunk> readHunks() {
+        List<BpsHunk> hunks = new ArrayList<>();
+        accept(new BpsHunkVisitor() {
+            @Override
+            public void sourceRead(int destinationIndex, int length) {
+                hunks.add(new BpsHunkSourceRead(destinationIndex, length));
+            }
+
+            @Override
+            public void selfRead(int destinationIndex, ByteBuffer data) {
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                hunks.add(new BpsHunkSelfRead(destinationIndex, bytes));
+            }
+
+            @Override
+            public void sourceCopy(int destinationIndex, int length, int copyFromIndex) {
+                hunks.add(new BpsHunkCopy(destinationIndex, BpsHunkCopyType.SOURCE_COPY, length,
+                        copyFromIndex));
+            }
+
+            @Override
+            public void targetCopy(int destinationIndex, int length, int copyFromIndex) {
+                hunks.add(new BpsHunkCopy(destinationIndex, BpsHunkCopyType.TARGET_COPY, length,
+                        copyFromIndex));
+            }
+        });
+        return hunks;
+    }
+
+    // Reads the hunks into a store without creating an object for each of them. The self
+    // reads have no arena. They give where their data starts in getPatch instead so none of
+    // it is copied
+    HunkStore readHunkStore() {
+        HunkStore hunks = new HunkStore(null);
+        accept(new BpsHunkVisitor() {
+            @Override
+            public void sourceRead(int destinationIndex, int length) {
+                hunks.append(BpsHunkSourceRead.DEFAULT_NAME, destinationIndex,
+                        HunkStore.SOURCE_READ, length, destinationIndex);
+            }
+
+            @Override
+            public void selfRead(int destinationIndex, ByteBuffer data) {
+                // Still at the start of the data while the visitor is called
+                hunks.append(BpsHunkSelfRead.DEFAULT_NAME, destinationIndex, HunkStore.SELF_READ,
+                        data.remaining(), readIndex);
+            }
+
+            @Override
+            public void sourceCopy(int destinationIndex, int length, int copyFromIndex) {
+                hunks.append(BpsHunkCopy.DEFAULT_NAME, destinationIndex, HunkStore.SOURCE_COPY,
+                        length, copyFromIndex);
+            }
+
+            @Override
+            public void targetCopy(int destinationIndex, int length, int copyFromIndex) {
+                hunks.append(BpsHunkCopy.DEFAULT_NAME, destinationIndex, HunkStore.TARGET_COPY,
+                        length, copyFromIndex);
+            }
+        });
+        return hunks;
+    }
+
+    // Walks through the hunks in order checking that they stay within the source and target
+    public void accept(BpsHunkVisitor visitor) {
+        readIndex = hunksStart;
+        int outputIndex = 0;
+        long sourceRelative = 0;
+        long targetRelative = 0;
+        while (readIndex < hunksEnd) {
+            long data = readNumber("hunk header");
+            int command = (int) (data & 3);
+            long length = (data >> 2) + 1;
+            if (outputIndex + length > targetSize) {
+                throw new IllegalArgumentException("Hunk at target index " + outputIndex
+                        + " with length " + length + " goes past the end of the target ("
+                        + targetSize + ")");
+            }
+            int hunkLength = (int) length;
+
+            switch (command) {
+            case 0: // SOURCE_READ
+                checkInRange(outputIndex, hunkLength, sourceSize, "Source read");
+                visitor.sourceRead(outputIndex, hunkLength);
+                break;
+            case 1: // SELF_READ
+                checkAvailable(hunkLength, "self read data");
+                visitor.selfRead(outputIndex, patch.slice(readIndex, hunkLength));
+                readIndex += hunkLength;
+                break;
+            case 2: // SOURCE_COPY
+                sourceRelative += readSignedNumber("source copy offset");
+                checkInRange(sourceRelative, hunkLength, sourceSize, "Source copy");
+                visitor.sourceCopy(outputIndex, hunkLength, (int) sourceRelative);
+                sourceRelative += hunkLength;
+                break;
+            default: // TARGET_COPY
+                targetRelative += readSignedNumber("target copy offset");
+                if (targetRelative < 0 || targetRelative >= outputIndex) {
+                    throw new IllegalArgumentException("Target copy at target index "
+                            + outputIndex + " reads from unwritten target index "
+                            + targetRelative);
+                }
+                visitor.targetCopy(outputIndex, hunkLength, (int) targetRelative);
+                targetRelative += hunkLength;
+                break;
+            }
+            outputIndex += hunkLength;
+        }
+
+        if (outputIndex != targetSize) {
+            throw new IllegalArgumentException("Hunks only cover " + outputIndex
+                    + " bytes of the target but the target size is " + targetSize);
+        }
+    }
+
+    private void checkInRange(long start, int length, int size, String hunkType) {
+        if (start < 0 || start + length > size) {
+            throw new IllegalArgumentException(hunkType + " of " + length + " bytes from index "
+                    + start + " is outside of the source (" + size + " bytes)");
+        }
+    }
+
+    private void checkAvailable(long length, String readingWhat) {
+        if (readIndex + length > hunksEnd) {
+            throw new IllegalArgumentException(
+                    "Patch ended unexpectedly while reading the " + readingWhat);
+        }
+    }
+
+    private int readSize(String readingWhat) {
+        long size = readNumber(readingWhat);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported " + readingWhat + " of " + size);
+        }
+        return (int) size;
+    }
+
+    private long readNumber(String readingWhat) {
+        long data = 0;
+        long shift = 1;
+        while (true) {
+            checkAvailable(1, readingWhat);
+            int value = patch.get(readIndex++) & 0xFF;
+            data += (value & 0x7F) * shift;
+            if ((value & 0x80) != 0) {
+                return data;
+            }
+            shift <<= 7;
+            data += shift;
+            if (shift > (1L << 49)) {
+                throw new IllegalArgumentException("Invalid number in the " + readingWhat);
+            }
+        }
+    }
+
+    private long readSignedNumber(String readingWhat) {
+        long data = readNumber(readingWhat);
+        return (data & 1) != 0 ? -(data >> 1) : data >> 1;
+    }
+
+    private long readCrc(int index) {
+        return Integer.toUnsignedLong(patch.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .getInt(index));
+    }
+}
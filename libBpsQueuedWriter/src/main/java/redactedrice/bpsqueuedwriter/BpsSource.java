@@ -0,0 +1,148 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// The original rom a patch is made against along with what the writers work out about it.
+// Make one for a rom and give it to each writer for that rom so the CRCs and the match
+// index are only built once no matter how many patches are made from it. Safe to share
+// between writers on different threads. The bytes are not copied so they must not be
+// changed once the source is made. Sources made from files are mapped rather than read
+// onto the heap
+public class BpsSource {
+    // Only ever read by index so its position never changes
+    private final ByteBuffer bytes;
+    // Built the first time something needs them
+    private volatile SourceCrcTable crcs;
+    private volatile SourceMatchIndex matchIndex;
+
+    public BpsSource(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    // Uses the remaining bytes of the buffer
+    public BpsSource(ByteBuffer bytes) {
+        this.bytes = bytes.slice();
+        crcs = null;
+        matchIndex = null;
+    }
+
+    public BpsSource(Path file) throws IOException {
+        this(map(file));
+    }
+
+    // The whole file the channel is for. The channel can be closed once this is made
+    public BpsSource(FileChannel channel) throws IOException {
+        this(map(channel));
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return map(channel);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "Source is " + size + " bytes which is more than BPS sources can be");
+        }
+        return channel.map(MapMode.READ_ONLY, 0, size);
+    }
+
+    public int size() {
+        return bytes.limit();
+    }
+
+    public long getCrc32() {
+        return getCrcs(Crc32Engine.getDefault()).getSourceCrc32();
+    }
+
+    // Hinted blocks build the index the first time they need it. This builds it up front
+    // instead so no writer is held up by it
+    public void buildMatchIndex() {
+        getMatchIndex();
+    }
+
+    // Maps in the match index saved in the file instead of building it. Only uses the file
+    // if it was saved for a source of the same length and CRC by this version of the
+    // library and isn't damaged. Returns false if it couldn't be used in which case the
+    // index is built the first time it's needed as usual
+    public boolean loadMatchIndex(Path indexFile) throws IOException {
+        if (hasMatchIndex()) {
+            return true;
+        }
+        SourceMatchIndex loaded = SourceMatchIndex.load(bytes, getCrc32(), indexFile,
+                Crc32Engine.getDefault());
+        if (loaded == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (matchIndex == null) {
+                matchIndex = loaded;
+            }
+        }
+        return true;
+    }
+
+    // Builds the match index if needed and saves it to the file for loadMatchIndex. The
+    // file is about eight times the size of the source
+    public void saveMatchIndex(Path indexFile) throws IOException {
+        getMatchIndex().save(getCrc32(), indexFile);
+    }
+
+    // For tools that start up many times against the same rom. Loads the index from the
+    // file if it can and otherwise builds it and saves it there for next time
+    public void loadOrBuildMatchIndex(Path indexFile) throws IOException {
+        if (!loadMatchIndex(indexFile)) {
+            saveMatchIndex(indexFile);
+        }
+    }
+
+    ByteBuffer getBytes() {
+        return bytes;
+    }
+
+    // The engine is only used if nothing has needed the CRCs before
+    SourceCrcTable getCrcs(Crc32Engine engine) {
+        SourceCrcTable built = crcs;
+        if (built == null) {
+            synchronized (this) {
+                built = crcs;
+                if (built == null) {
+                    built = new SourceCrcTable(bytes, engine);
+                    crcs = built;
+                }
+            }
+        }
+        return built;
+    }
+
+    boolean hasCrcs() {
+        return crcs != null;
+    }
+
+    SourceMatchIndex getMatchIndex() {
+        SourceMatchIndex built = matchIndex;
+        if (built == null) {
+            synchronized (this) {
+                built = matchIndex;
+                if (built == null) {
+                    built = new SourceMatchIndex(bytes);
+                    matchIndex = built;
+                }
+            }
+        }
+        return built;
+    }
+
+    boolean hasMatchIndex() {
+        return matchIndex != null;
+    }
+}
@@ -0,0 +1,282 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// The target described by a complete set of hunks without building the whole thing.
+// Bytes are only looked up for the parts that are asked for so the CRC can be computed
+// mostly from source CRCs and only the self read and copy data gets hashed. The bytes
+// hashed last are kept so target copies of them don't have to be looked up again through
+// every target copy they came from
+class BpsTargetView {
+    static final int MIN_LENGTH_TO_COMBINE = 0x400;
+    static final int WINDOW_SIZE = 0x10000;
+
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+    // Kinds of the pending steps of a read
+    private static final int READ_TARGET = 0;
+    private static final int REPEAT_PATTERN = 1;
+    private static final int STEP_SIZE = 4;
+
+    private final ByteBuffer source;
+    private final SourceCrcTable sourceCrcs;
+    // Sorted and covering the whole target
+    private final HunkStore hunks;
+    // Null if the self reads' data is in their arenas
+    private final ByteBuffer selfReadData;
+    private byte[] scratch;
+    // Steps of the read in progress that are still to be done. Each is its kind, the target
+    // index to read or the distance to repeat, the destination offset and the length. Target
+    // copies read from bytes that can themselves be target copies so a chain of them would
+    // nest as deep as it is long if followed by recursion
+    private int[] steps;
+    private int stepsSize;
+    // The bytes of the target from windowStart up to windowEnd by their index modulo the
+    // window size
+    private final byte[] window;
+    private int windowStart;
+    private int windowEnd;
+
+    BpsTargetView(ByteBuffer source, SourceCrcTable sourceCrcs, HunkStore hunks) {
+        this(source, sourceCrcs, hunks, null);
+    }
+
+    // For hunks read from a patch whose self reads give where their data is in the patch
+    // instead of an arena so it is used where it is without being copied
+    BpsTargetView(ByteBuffer source, SourceCrcTable sourceCrcs, HunkStore hunks,
+            ByteBuffer selfReadData) {
+        this.source = source;
+        this.sourceCrcs = sourceCrcs;
+        this.hunks = hunks;
+        this.selfReadData = selfReadData;
+        scratch = new byte[0];
+        steps = new int[STEP_SIZE * 16];
+        stepsSize = 0;
+        window = new byte[WINDOW_SIZE];
+        clearWindow(0);
+    }
+
+    long computeCrc32() {
+        return computeCrc32(0, hunks.size());
+    }
+
+    // CRC of what the hunks from first up to but not including end write to the target
+    long computeCrc32(int first, int end) {
+        // Combining CRCs costs more than hashing a few bytes so small hunks are hashed
+        // together and only large ones are combined
+        long crc = 0;
+        CRC32 smallHunksCrc = new CRC32();
+        long smallHunksLength = 0;
+        for (int index = first; index < end; index++) {
+            int destinationIndex = hunks.getDestinationIndex(index);
+            int length = hunks.getLength(index);
+            if (destinationIndex != windowEnd) {
+                clearWindow(destinationIndex);
+            }
+            if (length < MIN_LENGTH_TO_COMBINE) {
+                byte[] bytes = getScratch(length);
+                readHunk(index, 0, bytes, 0, length);
+                addToWindow(bytes, length);
+                smallHunksCrc.update(bytes, 0, length);
+                smallHunksLength += length;
+            } else {
+                crc = Crc32Utils.combine(crc, smallHunksCrc.getValue(), smallHunksLength);
+                smallHunksCrc.reset();
+                smallHunksLength = 0;
+                crc = Crc32Utils.combine(crc, computeHunkCrc32(index), length);
+            }
+        }
+        return Crc32Utils.combine(crc, smallHunksCrc.getValue(), smallHunksLength);
+    }
+
+    byte[] createTargetBytes() {
+        int length = 0;
+        if (hunks.size() > 0) {
+            length = hunks.getEndIndex(hunks.size() - 1);
+        }
+        // Built in order like a patch is applied so target copies copy what is already
+        // there instead of looking it up
+        byte[] target = new byte[length];
+        for (int index = 0; index < hunks.size(); index++) {
+            int destinationIndex = hunks.getDestinationIndex(index);
+            int hunkLength = hunks.getLength(index);
+            if (hunks.getType(index) == HunkStore.TARGET_COPY) {
+                int copyFrom = hunks.getCopyFromIndex(index);
+                for (int offset = 0; offset < hunkLength; offset++) {
+                    target[destinationIndex + offset] = target[copyFrom + offset];
+                }
+            } else {
+                readHunk(index, 0, target, destinationIndex, hunkLength);
+            }
+        }
+        return target;
+    }
+
+    // Copies length bytes of what the hunk writes to the target, starting offset bytes
+    // into the hunk
+    private void readHunk(int index, int offset, byte[] destination, int destinationOffset,
+            int length) {
+        readHunkPart(index, offset, destination, destinationOffset, length);
+        runSteps(destination);
+    }
+
+    // Every step writes to its own part of the destination. The steps a target copy adds
+    // for the bytes it copies are taken off the stack before the step that repeats them
+    private void runSteps(byte[] destination) {
+        while (stepsSize > 0) {
+            stepsSize -= STEP_SIZE;
+            int kind = steps[stepsSize];
+            int first = steps[stepsSize + 1];
+            int destinationOffset = steps[stepsSize + 2];
+            int length = steps[stepsSize + 3];
+            if (kind == READ_TARGET && first >= windowStart && first + length <= windowEnd) {
+                readWindow(first, destination, destinationOffset, length);
+            } else if (kind == READ_TARGET) {
+                readTarget(first, destination, destinationOffset, length);
+            } else {
+                // Overlapping target copies repeat the first distance bytes they write
+                for (int done = first; done < length; done += first) {
+                    System.arraycopy(destination, destinationOffset, destination,
+                            destinationOffset + done, Math.min(first, length - done));
+                }
+            }
+        }
+    }
+
+    private void readTarget(int targetIndex, byte[] destination, int destinationOffset,
+            int length) {
+        int hunkIndex = hunks.findIndex(targetIndex);
+        while (length > 0) {
+            if (hunkIndex < 0 || hunkIndex >= hunks.size()
+                    || targetIndex >= hunks.getEndIndex(hunkIndex)) {
+                throw new IllegalArgumentException("Internal error: Tried to read target index "
+                        + targetIndex + " which is not covered by any hunk");
+            }
+            int offset = targetIndex - hunks.getDestinationIndex(hunkIndex);
+            int toRead = Math.min(length, hunks.getLength(hunkIndex) - offset);
+            readHunkPart(hunkIndex, offset, destination, destinationOffset, toRead);
+
+            targetIndex += toRead;
+            destinationOffset += toRead;
+            length -= toRead;
+            hunkIndex++;
+        }
+    }
+
+    // Copies the part of the hunk if its bytes are at hand or adds the steps to look them
+    // up if it is a target copy
+    private void readHunkPart(int index, int offset, byte[] destination, int destinationOffset,
+            int length) {
+        int copyFrom = hunks.getCopyFromIndex(index);
+        switch (hunks.getType(index)) {
+        case HunkStore.SOURCE_READ:
+        case HunkStore.SOURCE_COPY:
+            source.get(copyFrom + offset, destination, destinationOffset, length);
+            break;
+        case HunkStore.SELF_READ:
+            if (selfReadData != null) {
+                selfReadData.get(copyFrom + offset, destination, destinationOffset, length);
+            } else {
+                hunks.getArena(index).read(copyFrom + offset, destination, destinationOffset,
+                        length);
+            }
+            break;
+        case HunkStore.FILL:
+            Arrays.fill(destination, destinationOffset, destinationOffset + length,
+                    (byte) copyFrom);
+            break;
+        default:
+            pushTargetCopy(hunks.getDestinationIndex(index), copyFrom, offset,
+                    destinationOffset, length);
+            break;
+        }
+    }
+
+    private void pushTargetCopy(int destinationIndex, int copyFrom, int offset,
+            int destinationOffset, int length) {
+        // Target copies that overlap what they write repeat the bytes between where they
+        // copy from and where they write to so the byte at any offset is the one at offset
+        // modulo that distance
+        int distance = destinationIndex - copyFrom;
+        int patternStart = offset % distance;
+        int fromTarget = Math.min(length, distance);
+        int beforeWrap = Math.min(fromTarget, distance - patternStart);
+        if (length > distance) {
+            pushStep(REPEAT_PATTERN, distance, destinationOffset, length);
+        }
+        pushStep(READ_TARGET, copyFrom + patternStart, destinationOffset, beforeWrap);
+        if (fromTarget > beforeWrap) {
+            pushStep(READ_TARGET, copyFrom, destinationOffset + beforeWrap,
+                    fromTarget - beforeWrap);
+        }
+    }
+
+    private void pushStep(int kind, int first, int destinationOffset, int length) {
+        if (stepsSize == steps.length) {
+            steps = Arrays.copyOf(steps, stepsSize * 2);
+        }
+        steps[stepsSize] = kind;
+        steps[stepsSize + 1] = first;
+        steps[stepsSize + 2] = destinationOffset;
+        steps[stepsSize + 3] = length;
+        stepsSize += STEP_SIZE;
+    }
+
+    // CRC of the bytes the hunk writes to the target
+    private long computeHunkCrc32(int index) {
+        int copyFrom = hunks.getCopyFromIndex(index);
+        int length = hunks.getLength(index);
+        switch (hunks.getType(index)) {
+        case HunkStore.SOURCE_READ:
+        case HunkStore.SOURCE_COPY:
+            return sourceCrcs.spanCrc32(copyFrom, copyFrom + length);
+        case HunkStore.SELF_READ:
+            if (selfReadData != null) {
+                return Crc32Utils.crc32(selfReadData, copyFrom, length);
+            }
+            return hunks.getArena(index).crc32(copyFrom, length);
+        default:
+            byte[] bytes = getScratch(length);
+            readHunk(index, 0, bytes, 0, length);
+            addToWindow(bytes, length);
+            return Crc32Utils.crc32(bytes, 0, length);
+        }
+    }
+
+    // Nothing before the target index is kept
+    private void clearWindow(int targetIndex) {
+        windowStart = targetIndex;
+        windowEnd = targetIndex;
+    }
+
+    // The bytes are the ones at the end of the window
+    private void addToWindow(byte[] bytes, int length) {
+        int skipped = Math.max(0, length - WINDOW_SIZE);
+        int start = (windowEnd + skipped) & WINDOW_MASK;
+        int beforeWrap = Math.min(length - skipped, WINDOW_SIZE - start);
+        System.arraycopy(bytes, skipped, window, start, beforeWrap);
+        System.arraycopy(bytes, skipped + beforeWrap, window, 0, length - skipped - beforeWrap);
+        windowEnd += length;
+        windowStart = Math.max(windowStart, windowEnd - WINDOW_SIZE);
+    }
+
+    private void readWindow(int targetIndex, byte[] destination, int destinationOffset,
+            int length) {
+        int start = targetIndex & WINDOW_MASK;
+        int beforeWrap = Math.min(length, WINDOW_SIZE - start);
+        System.arraycopy(window, start, destination, destinationOffset, beforeWrap);
+        System.arraycopy(window, 0, destination, destinationOffset + beforeWrap,
+                length - beforeWrap);
+    }
+
+    // Shared buffer for hunks that need to look up their bytes to compute their CRC
+    private byte[] getScratch(int size) {
+        if (scratch.length < size) {
+            scratch = new byte[size];
+        }
+        return scratch;
+    }
+}
@@ -1,25 +1,30 @@
 package redactedrice.bpsqueuedwriter;
 
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import redactedrice.bpsqueuedwriter.BpsHunk.BpsHunkType;
+import redactedrice.bpsqueuedwriter.BpsWriterStats.Phase;
 import redactedrice.gbcframework.QueuedWriter;
 import redactedrice.gbcframework.addressing.AddressRange;
-import redactedrice.gbcframework.utils.ByteUtils;
 
-public class BpsWriter implements QueuedWriter {
+public class BpsWriter implements QueuedWriter, Closeable {
     public enum BpsHunkCopyType {
         SOURCE_COPY(BpsHunkType.SOURCE_COPY), TARGET_COPY(BpsHunkType.TARGET_COPY);
 
@@ -34,33 +39,123 @@ public class BpsWriter implements QueuedWriter {
         }
     }
 
-    // The target address and the hunk that starts at the target address
-    byte[] sourceBytes;
-    TreeSet<BpsHunk> hunks;
-    TreeMap<Integer, Integer> spacesToBlank;
+    // How hard to look for the smallest way to split hinted blocks into hunks
+    public enum MatchEffort {
+        // Take the longest match at each spot as long as it's long enough
+        GREEDY,
+        // Pick the matches that give the smallest patch overall
+        OPTIMAL
+    }
+
+    // Shortest source match that is worth copying instead of self reading by default
+    static final int DEFAULT_MIN_MATCH_LENGTH = 4;
+    // Hints smaller than this in total are searched directly instead of through the index
+    static final int MIN_HINT_SIZE_TO_INDEX = 0x400;
+    // Blocks are matched for as long as it takes by default
+    public static final long UNLIMITED_MATCH_BUDGET = Long.MAX_VALUE;
+    private static final String FILLER_READ_NAME = "FILLER_READ_";
+    private static final String BLANKING_HUNK_NAME = "BLANKING_HUNK_";
+    // "BPS1" and the three CRCs
+    private static final int MAGIC_SIZE = 4;
+    private static final int FOOTER_SIZE = 12;
 
-    int selfReadBeingCreatedDestIndex;
-    String selfReadBeingCreatedName;
-    ByteArrayOutputStream selfReadBeingCreated;
-    List<AddressRange> selfReadBeingCreatedReuse;
+    // The target address and the hunk that starts at the target address
+    BpsSource source;
+    ByteBuffer sourceBytes;
+    Crc32Engine crc32Engine;
+    // Only the hunks that were queued. The gaps between them are filled in a separate store
+    // each time the patch is written so writing it again starts from the same hunks
+    HunkStore hunks;
+    IntervalSet spacesToBlank;
+    // Blanks passed for the last patch written or target created. Null if there hasn't been
+    // one since the writer was made or reset
+    List<AddressRange> lastWrittenBlanks;
+    // Null unless the encoding is being cached
+    EncodedHunkCache encodingCache;
+
+    // Defaults to the source length since we usually aren't making the rom longer
+    int targetLength;
+    // What blanked space and space past the end of the source is filled with
+    byte fillByte;
+
+    // All the self read bytes written directly to this writer go here as they are appended
+    PayloadArena payloads;
+    BlockBuilder blockBuilder;
+    // Handles given out to write blocks from other threads
+    List<BpsBlockWriter> blockWriters;
+    long payloadHeapLimit;
+    Path payloadSpillDirectory;
+
+    boolean deferredMatching;
+    ForkJoinPool matchPool;
+    int minMatchLength;
+    MatchEffort matchEffort;
+    // Used for blocks started without hints. Empty if they aren't matched
+    List<AddressRange> defaultReuseHints;
+    long matchBudget;
+
+    boolean targetReuse;
+    TargetMatchFinder targetMatches;
+    int lastTargetCopyEnd;
+    // Null unless blocks are being deduped
+    BlockDedupeIndex blockDedupe;
+
+    BpsWriterStats stats;
 
     public BpsWriter(byte[] originalBytes) {
-        sourceBytes = originalBytes;
-        hunks = new TreeSet<>();
-        spacesToBlank = new TreeMap<>();
+        this(new BpsSource(originalBytes));
+    }
 
-        selfReadBeingCreatedDestIndex = -1;
-        selfReadBeingCreated = new ByteArrayOutputStream();
+    // Maps the source instead of reading it onto the heap
+    public BpsWriter(Path sourceFile) throws IOException {
+        this(new BpsSource(sourceFile));
+    }
+
+    public BpsWriter(FileChannel sourceChannel) throws IOException {
+        this(new BpsSource(sourceChannel));
+    }
+
+    // For making many patches against the same rom without working out its CRCs and index
+    // again for each one
+    public BpsWriter(BpsSource source) {
+        this.source = source;
+        sourceBytes = source.getBytes();
+        stats = new BpsWriterStats();
+        payloads = new PayloadArena();
+        hunks = new HunkStore(payloads);
+        spacesToBlank = new IntervalSet();
+        lastWrittenBlanks = null;
+        encodingCache = null;
+        targetLength = sourceBytes.limit();
+        fillByte = 0;
+        crc32Engine = Crc32Engine.getDefault();
+
+        blockBuilder = new BlockBuilder(this, payloads, true);
+        blockWriters = new ArrayList<>();
+        payloadHeapLimit = Long.MAX_VALUE;
+        payloadSpillDirectory = null;
+
+        deferredMatching = false;
+        matchPool = ForkJoinPool.commonPool();
+        minMatchLength = DEFAULT_MIN_MATCH_LENGTH;
+        matchEffort = MatchEffort.GREEDY;
+        defaultReuseHints = List.of();
+        matchBudget = UNLIMITED_MATCH_BUDGET;
+
+        targetReuse = false;
+        targetMatches = null;
+        lastTargetCopyEnd = 0;
+        blockDedupe = null;
     }
 
     @Override
     public void append(byte... bytes) throws IOException {
-        selfReadBeingCreated.write(bytes);
+        blockBuilder.append(bytes);
     }
 
     @Override
     public String getCurrentBlockName() {
-        return selfReadBeingCreatedName;
+        return blockBuilder.getCurrentBlockName();
     }
 
     @Override
@@ -70,10 +165,7 @@ public class BpsWriter implements QueuedWriter {
 
     @Override
     public void startNewBlock(int segmentStartAddress, String segmentName) {
-        // Check if we are overwriting the previous hunk
-        finalizeSelfReadBeingCreated();
-        selfReadBeingCreatedDestIndex = segmentStartAddress;
-        selfReadBeingCreatedName = segmentName;
+        startNewBlock(segmentStartAddress, segmentName, null);
     }
 
     @Override
@@ -84,382 +176,705 @@ public class BpsWriter implements QueuedWriter {
     @Override
     public void startNewBlock(int segmentStartAddress, String segmentName,
             List<AddressRange> reuseHints) {
-        startNewBlock(segmentStartAddress, segmentName);
-        selfReadBeingCreatedReuse = new ArrayList<>();
-        if (reuseHints != null) {
-            selfReadBeingCreatedReuse.addAll(reuseHints);
-        }
+        startNewBlock(segmentStartAddress, segmentName, reuseHints, false);
     }
 
-    @Override
-    public void queueBlankedBlock(AddressRange range) {
-        spacesToBlank.put(range.getStart(), range.getStopExclusive());
+    // Also matches the block against the target when reuseTarget is set even if target
+    // reuse is off for the writer. The block can then copy from earlier in itself and from
+    // earlier blocks that were matched against the target too
+    public void startNewBlock(int segmentStartAddress, String segmentName,
+            List<AddressRange> reuseHints, boolean reuseTarget) {
+        // Check if we are overwriting the previous hunk
+        finalizeSelfReadBeingCreated();
+        blockBuilder.startNewBlock(segmentStartAddress, segmentName, reuseHints, reuseTarget);
     }
 
-    private void checkAndAddHunk(BpsHunk hunk) {
-        checkForPrevHunkOverwrite(hunk);
-        checkForNextHunkOverwrite(hunk);
-        hunks.add(hunk);
+    // Starts a block with the same hints and target reuse as the block before it. For
+    // carrying on with a block after adding a hunk in the middle of it
+    public void startContinuedBlock(int segmentStartAddress, String segmentName) {
+        finalizeSelfReadBeingCreated();
+        blockBuilder.continueBlock(segmentStartAddress, segmentName);
+    }
+
+    // Blocks can be queued from the block writers' threads too
+    @Override
+    public synchronized void queueBlankedBlock(AddressRange range) {
+        spacesToBlank.add(range.getStart(), range.getStopExclusive());
     }
 
     public void newSourceRead(int readFromIndex, int size) {
-        BpsHunkSourceRead sourceReadHunk = new BpsHunkSourceRead(readFromIndex, size);
-        newHunkCommon(sourceReadHunk);
+        newSourceRead(BpsHunkSourceRead.DEFAULT_NAME, readFromIndex, size);
     }
 
     public void newSourceRead(String name, int readFromIndex, int size) {
-        BpsHunkSourceRead sourceReadHunk = new BpsHunkSourceRead(name, readFromIndex, size);
-        newHunkCommon(sourceReadHunk);
+        // Check that this hunk doesn't overwrite any others
+        finalizeSelfReadBeingCreated();
+        hunks.add(name, readFromIndex, HunkStore.SOURCE_READ, size, readFromIndex);
+    }
+
+    public void newSelfRead(int destinationIndex, byte[] data) {
+        newSelfRead(BpsHunkSelfRead.DEFAULT_NAME, destinationIndex, data);
+    }
+
+    public void newSelfRead(String name, int destinationIndex, byte[] data) {
+        finalizeSelfReadBeingCreated();
+        hunks.add(name, destinationIndex, HunkStore.SELF_READ, data.length,
+                blockBuilder.appendSelfRead(data));
+    }
+
+    public void newFill(int destinationIndex, int size, byte value) {
+        newFill(BpsHunkSelfRead.DEFAULT_NAME, destinationIndex, size, value);
+    }
+
+    // Fills are written as a single byte that is target copied over the rest of them
+    public void newFill(String name, int destinationIndex, int size, byte value) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Fill size must be at least 1: " + size);
+        }
+        finalizeSelfReadBeingCreated();
+        hunks.add(name, destinationIndex, HunkStore.FILL, size, value);
     }
 
     public void newCopyHunk(int destinationIndex, BpsHunkCopyType type, int size,
             int copyFromStartIndex) {
-        BpsHunkCopy copyHunk = new BpsHunkCopy(destinationIndex, type, size, copyFromStartIndex);
-        newHunkCommon(copyHunk);
+        newCopyHunk(BpsHunkCopy.DEFAULT_NAME, destinationIndex, type, size, copyFromStartIndex);
     }
 
     public void newCopyHunk(String name, int destinationIndex, BpsHunkCopyType type, int size,
             int copyFromStartIndex) {
-        BpsHunkCopy copyHunk = new BpsHunkCopy(name, destinationIndex, type, size,
-                copyFromStartIndex);
-        newHunkCommon(copyHunk);
+        // Check if it is a target copy that it doesn't try to read from a
+        // future, unwritten location
+        if (type == BpsHunkCopyType.TARGET_COPY && copyFromStartIndex >= destinationIndex) {
+            throw new IllegalArgumentException("BPS hunk target copy has a copy from index of "
+                    + copyFromStartIndex + " which is after or equal to the destination index of "
+                    + destinationIndex + ". Target hunks cannot target unwritten data");
+        }
+        finalizeSelfReadBeingCreated();
+        hunks.add(name, destinationIndex, HunkStore.toStoreType(type), size, copyFromStartIndex);
     }
 
-    private void newHunkCommon(BpsHunk hunk) {
-        // Check that this hunk doesn't overwrite any others
-        finalizeSelfReadBeingCreated();
-        checkAndAddHunk(hunk);
+    public void setTargetLength(int targetLength) {
+        if (targetLength < 0) {
+            throw new IllegalArgumentException("Target length cannot be negative: " + targetLength);
+        }
+        this.targetLength = targetLength;
     }
 
-    private void finalizeSelfReadBeingCreated() {
-        if (selfReadBeingCreatedDestIndex > 0 && selfReadBeingCreated.size() > 0) {
-            // If there are reuse hints, check now to see if we can reuse the source
-            // Possibly in the future we could add target/inter-patch reuse but for now just
-            // worry about source reuse as its the more problematic one
-            if (!selfReadBeingCreatedReuse.isEmpty()) {
-                createHunksBasedOnHints();
-            } else {
-                checkAndAddHunk(new BpsHunkSelfRead(selfReadBeingCreatedName,
-                        selfReadBeingCreatedDestIndex, selfReadBeingCreated.toByteArray()));
-            }
+    public int getTargetLength() {
+        return targetLength;
+    }
 
-            selfReadBeingCreated.reset();
-            selfReadBeingCreatedDestIndex = -1;
-            selfReadBeingCreatedName = "INTERNAL_NAME_ERROR";
-            selfReadBeingCreatedReuse.clear();
-        }
-    }
-
-    private void createHunksBasedOnHints() {
-        byte[] hunkDesiredBytes = selfReadBeingCreated.toByteArray();
-        // Until we have processed the entire hunk
-        int hunksCreated = 0;
-        int hunkSpot = 0;
-        int lastMatchSpot = 0;
-
-        // Could be a for loop but using a while since we are potentially
-        // jumping iterator forward outside the end of loop iterator
-        while (hunkSpot < hunkDesiredBytes.length) {
-            // Look for a segment match starting with this byte in the hunk
-            AddressRange bestMatch = getBestMatch(hunkDesiredBytes, hunkSpot);
-
-            // If its worth copying (right now at least 4 length)
-            if (bestMatch.size() > 3 || // TODO: Make option
-                    hunkSpot + bestMatch.size() == hunkDesiredBytes.length) // Matches to the end
-            {
-                // Write the self copy if needed
-                if (lastMatchSpot != hunkSpot) {
-                    // Write from the last match spot to the current spot
-                    checkAndAddHunk(new BpsHunkSelfRead(
-                            selfReadBeingCreatedName + hunksCreated++ + "_selfRead",
-                            selfReadBeingCreatedDestIndex + lastMatchSpot,
-                            Arrays.copyOfRange(hunkDesiredBytes, lastMatchSpot, hunkSpot)));
-                }
+    public void setFillByte(byte fillByte) {
+        this.fillByte = fillByte;
+    }
 
-                // Now update the last match spot and write from the current spot to there
-                lastMatchSpot = hunkSpot + bestMatch.size();
-                checkAndAddHunk(new BpsHunkCopy(selfReadBeingCreatedName + hunksCreated++ + "_copy",
-                        selfReadBeingCreatedDestIndex + hunkSpot, BpsHunkCopyType.SOURCE_COPY,
-                        bestMatch.size(), bestMatch.getStart()));
+    public byte getFillByte() {
+        return fillByte;
+    }
 
-                // + 1 to move to the next unmatched spot
-                hunkSpot = lastMatchSpot;
-            }
-            hunkSpot++;
-        }
-
-        // Write the trailing self read if we didn't match to the end
-        if (hunkDesiredBytes.length > lastMatchSpot) {
-            // Write from the last match spot to the current spot
-            checkAndAddHunk(
-                    new BpsHunkSelfRead(selfReadBeingCreatedName + hunksCreated++ + "_selfRead",
-                            selfReadBeingCreatedDestIndex + lastMatchSpot,
-                            Arrays.copyOfRange(hunkDesiredBytes, lastMatchSpot, hunkSpot)));
-        }
-    }
-
-    // TODO: Move to a utility?
-    private AddressRange getBestMatch(byte[] hunkDesiredBytes, int hunkSpot) {
-        // For each reuse hint, we will search for matching strings
-        int bestAddress = 0;
-        int bestCount = 0;
-        for (AddressRange range : selfReadBeingCreatedReuse) {
-            // While we haven't checked each option that could be
-            // larger for this spot (- best length since if we have less than
-            // that left, we can't find a longer one)
-            for (int startAddress = range.getStart(); startAddress < range.getStopExclusive()
-                    - bestCount; startAddress++) {
-                // If it matches, see for how long it matches
-                if (hunkDesiredBytes[hunkSpot] == sourceBytes[startAddress]) {
-                    int matchCount = 0;
-                    while (startAddress + matchCount < range.getStopExclusive() && // Not at the end
-                                                                                   // of the hint
-                            hunkSpot + matchCount < hunkDesiredBytes.length && // Not the end of the
-                                                                               // matcher bytes
-                            hunkDesiredBytes[hunkSpot + matchCount] == sourceBytes[startAddress
-                                    + matchCount]) {
-                        matchCount++;
-                    }
-
-                    if (matchCount > bestCount) {
-                        bestCount = matchCount;
-                        bestAddress = startAddress;
-                    }
-                }
-            }
+    public BpsSource getSource() {
+        return source;
+    }
+
+    // Engine used to compute the CRCs of large data. Defaults to one on the common pool.
+    // Source CRCs that were already worked out for a shared source are kept as they are
+    public void setCrc32Engine(Crc32Engine crc32Engine) {
+        this.crc32Engine = crc32Engine;
+    }
+
+    // When enabled, blocks are also matched against bytes of previously finalized blocks at
+    // lower addresses and target copy them where it's smaller than self reading them again
+    public void setTargetReuse(boolean targetReuse) {
+        this.targetReuse = targetReuse;
+        if (targetReuse && targetMatches == null) {
+            targetMatches = new TargetMatchFinder(payloads);
+        }
+    }
+
+    public boolean isTargetReuse() {
+        return targetReuse;
+    }
+
+    // When enabled, blocks that aren't otherwise matched are target copied where they repeat
+    // blocks finalized before them at lower addresses. Much cheaper than target reuse since
+    // it only looks up whole chunks of the block but it only finds repeats that line up
+    // with the start of the earlier block. Only counts blocks finalized after it is enabled
+    // and like target reuse, block writers don't use it
+    public void setBlockDedupe(boolean blockDedupe) {
+        if (!blockDedupe) {
+            this.blockDedupe = null;
+        } else if (this.blockDedupe == null) {
+            this.blockDedupe = new BlockDedupeIndex(payloads);
         }
+    }
+
+    public boolean isBlockDedupe() {
+        return blockDedupe != null;
+    }
+
+    // When enabled, blocks with reuse hints are only recorded when they are finished and
+    // are all matched against the source in parallel on the pool when the patch is written.
+    // The patch is the same either way but overlaps with those blocks are only found when
+    // it is written. Blocks are still matched right away if target reuse is on since they
+    // depend on the ones before them
+    public void setDeferredMatching(boolean deferredMatching) {
+        setDeferredMatching(deferredMatching, ForkJoinPool.commonPool());
+    }
 
-        return new AddressRange(bestAddress, bestAddress + bestCount);
+    public void setDeferredMatching(boolean deferredMatching, ForkJoinPool matchPool) {
+        this.deferredMatching = deferredMatching;
+        this.matchPool = matchPool;
     }
 
-    private void checkForPrevHunkOverwrite(BpsHunk hunk) {
-        BpsHunk prevHunk = hunks.lower(hunk);
-        if (prevHunk != null && prevHunk.getDestinationIndex() + prevHunk.getLength() - 1 >= hunk
-                .getDestinationIndex()) {
+    public boolean isDeferredMatching() {
+        return deferredMatching;
+    }
+
+    // Shortest match that will be copied instead of self read. Shorter matches are still
+    // used if they reach the end of the block
+    public void setMinMatchLength(int minMatchLength) {
+        if (minMatchLength < 1) {
             throw new IllegalArgumentException(
-                    "Overwrite of the previous hunk \"" + prevHunk.getName() + "\"(starting at "
-                            + prevHunk.getDestinationIndex() + " and ending at "
-                            + (prevHunk.getDestinationIndex() + prevHunk.getLength() - 1)
-                            + ") was detected starting at " + hunk.getDestinationIndex()
-                            + " while adding hunk \"" + hunk.getName() + "\"");
+                    "Min match length must be at least 1: " + minMatchLength);
         }
+        this.minMatchLength = minMatchLength;
     }
 
-    private void checkForNextHunkOverwrite(BpsHunk hunk) {
-        BpsHunk nextHunk = hunks.higher(hunk);
-        if (nextHunk != null && hunk.getDestinationIndex() + hunk.getLength() - 1 >= nextHunk
-                .getDestinationIndex()) {
-            throw new IllegalArgumentException("Overwrite of the next hunk \"" + nextHunk.getName()
-                    + "\"(starting at " + nextHunk.getDestinationIndex()
-                    + ") was detected while checking hunk \"" + hunk.getName() + "\" starting at "
-                    + hunk.getDestinationIndex() + " and ending at "
-                    + (hunk.getDestinationIndex() + hunk.getLength() - 1));
+    public int getMinMatchLength() {
+        return minMatchLength;
+    }
+
+    // Optimal matching looks up a match at every byte of hinted blocks instead of skipping
+    // past the ones it takes so it is slower. Blocks that are also matched against the target
+    // are always done greedily
+    public void setMatchEffort(MatchEffort matchEffort) {
+        this.matchEffort = matchEffort;
+    }
+
+    public MatchEffort getMatchEffort() {
+        return matchEffort;
+    }
+
+    // Hints used for blocks started without any so their bytes are copied from the source
+    // where they can be instead of always being self read. For example every bank of the
+    // source a block could have come from. Blocks started with an empty list of hints are
+    // still never matched. Takes effect for blocks started after it is set
+    public void setDefaultReuseHints(List<AddressRange> defaultReuseHints) {
+        this.defaultReuseHints =
+                defaultReuseHints == null ? List.of() : List.copyOf(defaultReuseHints);
+    }
+
+    public List<AddressRange> getDefaultReuseHints() {
+        return defaultReuseHints;
+    }
+
+    // Matches blocks started without hints against the whole source. Turning it off clears
+    // the default hints. Usually worth pairing with a match budget since every block then
+    // goes through the source's index
+    public void setAutoSourceReuse(boolean autoSourceReuse) {
+        setDefaultReuseHints(autoSourceReuse
+                ? List.of(new AddressRange(0, sourceBytes.limit())) : null);
+    }
+
+    // Most bytes and index entries compared looking for source matches for each block.
+    // Once a block uses it up the rest of it is self read. Counted instead of timed so the
+    // same blocks always give the same patch however busy the machine is
+    public void setMatchBudget(long matchBudget) {
+        if (matchBudget < 1) {
+            throw new IllegalArgumentException("Match budget must be at least 1: " + matchBudget);
         }
+        this.matchBudget = matchBudget;
     }
 
-    private void fillHunkSpacesWithBlanksOrSourceReads(int targetLength, int sourceLength,
-            List<AddressRange> toBlank) {
-        queueBlankedBlocks(toBlank);
+    public long getMatchBudget() {
+        return matchBudget;
+    }
 
-        // Ensure any pending ones are finalized prior to filling gaps
-        finalizeSelfReadBeingCreated();
+    // When enabled, the encoded hunks and target CRCs of each patch written are kept so
+    // writing it again only encodes and hashes the parts of the target around what changed
+    // since. Meant for tools that save the same patch again and again as it's edited. The
+    // patch is the same either way but the encoded hunks are held in memory between writes
+    public void setCacheEncoding(boolean cacheEncoding) {
+        if (!cacheEncoding) {
+            encodingCache = null;
+        } else if (encodingCache == null) {
+            encodingCache = new EncodedHunkCache();
+        }
+    }
+
+    public boolean isCacheEncoding() {
+        return encodingCache != null;
+    }
+
+    // Counts and timings for this writer and its block writers since it was made or last
+    // reset. Kept up to date as blocks are finished and patches are written
+    public BpsWriterStats getStats() {
+        return stats;
+    }
 
-        // Handle if the target is longer than the source
-        if (targetLength > sourceLength) {
-            spacesToBlank.put(sourceLength, targetLength);
+    // Made when first needed since blocks can reuse the target without it being on for the
+    // whole writer
+    TargetMatchFinder getTargetMatches() {
+        if (targetMatches == null) {
+            targetMatches = new TargetMatchFinder(payloads);
         }
+        return targetMatches;
+    }
 
-        // Go through the existing hunks in order filling in any gaps until we reach
-        // the end of the file
+    BlockDedupeIndex getBlockDedupe() {
+        return blockDedupe;
+    }
+
+    void setLastTargetCopyEnd(int lastTargetCopyEnd) {
+        this.lastTargetCopyEnd = lastTargetCopyEnd;
+    }
+
+    // Gives a separate writer for blocks that can be used from another thread while this
+    // and other block writers are in use. Each one must only be used by one thread at a time
+    // and none of them can be used while the patch is being written. Overlaps between blocks
+    // from different writers are only found when the patch is written. Block writers don't
+    // reuse the target even if it is enabled since that depends on the order blocks are
+    // finished in
+    public synchronized BpsBlockWriter newBlockWriter() {
+        PayloadArena blockPayloads = new PayloadArena();
+        blockPayloads.setHeapLimit(payloadHeapLimit, payloadSpillDirectory);
+        BpsBlockWriter blockWriter = new BpsBlockWriter(this, blockPayloads);
+        blockWriters.add(blockWriter);
+        return blockWriter;
+    }
+
+    // Limits how much of the appended block data is kept on the heap. Anything over the
+    // limit is moved out to a temp file which is removed when the writer is closed
+    public void setPayloadHeapLimit(long maxHeapBytes) {
+        setPayloadHeapLimit(maxHeapBytes, null);
+    }
+
+    public synchronized void setPayloadHeapLimit(long maxHeapBytes, Path spillDirectory) {
+        payloads.setHeapLimit(maxHeapBytes, spillDirectory);
+        payloadHeapLimit = maxHeapBytes;
+        payloadSpillDirectory = spillDirectory;
+        for (BpsBlockWriter blockWriter : blockWriters) {
+            blockWriter.getPayloads().setHeapLimit(maxHeapBytes, spillDirectory);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        payloads.close();
+        for (BpsBlockWriter blockWriter : blockWriters) {
+            blockWriter.getPayloads().close();
+        }
+    }
+
+    // Drops everything queued so the writer can make another patch against the same source.
+    // Settings are kept and the buffers already allocated are filled again rather than
+    // allocated anew. The stats start over. Block writers given out before this can't be
+    // used after it
+    public synchronized void reset() throws IOException {
+        hunks.clear();
+        stats.clear();
+        spacesToBlank.clear();
+        lastWrittenBlanks = null;
+        if (encodingCache != null) {
+            encodingCache.clear();
+        }
+        targetLength = sourceBytes.limit();
+        payloads.clear();
+        blockBuilder.reset();
+        for (BpsBlockWriter blockWriter : blockWriters) {
+            blockWriter.getPayloads().close();
+        }
+        blockWriters.clear();
+        if (targetMatches != null) {
+            targetMatches.clear();
+        }
+        lastTargetCopyEnd = 0;
+        if (blockDedupe != null) {
+            blockDedupe.clear();
+        }
+    }
+
+    private void finalizeSelfReadBeingCreated() {
+        blockBuilder.finalizeSelfReadBeingCreated(hunks);
+    }
+
+    // Roughly what the copy will take in the patch. The offset is really relative to the
+    // previous target copy in the order they are written but using the previous one we
+    // created is close enough to decide if it's worth it
+    int estimateTargetCopySize(int copyFromIndex, int length) {
+        return BpsHunk.sevenBitEncodedSize(((long) length - 1) << 2)
+                + BpsHunk.sevenBitEncodedSize(Math.abs((long) copyFromIndex - lastTargetCopyEnd) << 1);
+    }
+
+    // Built once and shared by all the hinted blocks including those from other threads and
+    // other writers for the same source
+    SourceMatchIndex getSourceMatchIndex() {
+        return source.getMatchIndex();
+    }
+
+    boolean hasSourceMatchIndex() {
+        return source.hasMatchIndex();
+    }
+
+    // The queued blanks plus the ones for this write and any space past the end of the
+    // source. The queued ones are left as they are
+    private IntervalSet getBlanksForWriting(List<AddressRange> toBlank) {
+        IntervalSet blanks = spacesToBlank.copy();
+        for (AddressRange range : toBlank) {
+            blanks.add(range.getStart(), range.getStopExclusive());
+        }
+        if (targetLength > sourceBytes.limit()) {
+            blanks.add(sourceBytes.limit(), targetLength);
+        }
+        return blanks;
+    }
+
+    // Go through the hunks and the blanks together in order filling in any gaps until we
+    // reach the end of the file. Each gap needs at most one source read plus a blank and
+    // source read for each blank in it. Gives the filled hunks and leaves the passed ones
+    // as they were
+    private HunkStore fillHunkSpaces(HunkStore hunks, IntervalSet blanks, int targetLength) {
+        HunkStore filled = new HunkStore(payloads, hunks.size() * 2 + blanks.size() * 2 + 1);
         int lastEndAddressExclusive = 0;
-        Iterator<Entry<Integer, Integer>> nextBlankItr = spacesToBlank.entrySet().iterator();
-        Entry<Integer, Integer> nextBlank = getNextOrNull(nextBlankItr);
-        TreeSet<BpsHunk> fillerHunks = new TreeSet<>();
-        for (BpsHunk hunk : hunks) {
+        int nextBlank = 0;
+        for (int index = 0; index < hunks.size(); index++) {
+            int destinationIndex = hunks.getDestinationIndex(index);
             // There is a gap we need to fill
-            if (hunk.getDestinationIndex() > lastEndAddressExclusive) {
-                createSourceReadOrBlanksToFillSpace(lastEndAddressExclusive,
-                        hunk.getDestinationIndex(), nextBlank, nextBlankItr, fillerHunks);
+            if (destinationIndex > lastEndAddressExclusive) {
+                nextBlank = createSourceReadOrBlanksToFillSpace(lastEndAddressExclusive,
+                        destinationIndex, blanks, nextBlank, filled);
             }
             // We filled too much of a gap or we have overlap between hunks
-            else if (hunk.getDestinationIndex() < lastEndAddressExclusive) {
-                // TODO: error
-                throw new IllegalArgumentException("Ovelapping hunks detected! TODO");
+            else if (destinationIndex < lastEndAddressExclusive) {
+                throw new IllegalArgumentException("Internal error: Overlapping hunks detected! \""
+                        + hunks.getName(index) + "\" starts at " + destinationIndex
+                        + " before the previous hunk ends at " + lastEndAddressExclusive);
             }
             // else the space matches up to the end of the previous hunk - we don't need to do
             // anything
 
-            // Now that we are done processing this hunk, set the last address to the end of this
-            // hunk
-            // and move to the next one
-            lastEndAddressExclusive = hunk.getDestinationIndex() + hunk.getLength();
+            filled.append(hunks, index);
+            lastEndAddressExclusive = hunks.getEndIndex(index);
         }
 
         // Ensure the target wasn't too short
         if (targetLength < lastEndAddressExclusive) {
-            throw new IllegalArgumentException("TODO");
+            throw new IllegalArgumentException("Hunks were written up to "
+                    + lastEndAddressExclusive + " which is past the end of the target ("
+                    + targetLength + ")");
         }
 
         // Add the final reads to the end of the file
-        createSourceReadOrBlanksToFillSpace(lastEndAddressExclusive, targetLength, nextBlank,
-                nextBlankItr, fillerHunks);
-
-        // Now add in the filler hunks
-        // TODO: Check for overlap? CheckAndAddAll?
-        hunks.addAll(fillerHunks);
+        createSourceReadOrBlanksToFillSpace(lastEndAddressExclusive, targetLength, blanks,
+                nextBlank, filled);
+        return filled;
     }
 
-    private void createSourceReadOrBlanksToFillSpace(int fillFrom, int fillTo,
-            Entry<Integer, Integer> nextBlank, Iterator<Entry<Integer, Integer>> nextBlankItr,
-            TreeSet<BpsHunk> toAppendTo) {
-        // TODO: Arg?
-        final byte fillByte = 0;
-
+    // Returns the index of the first blank that may still be needed for later spaces
+    private int createSourceReadOrBlanksToFillSpace(int fillFrom, int fillTo,
+            IntervalSet blanks, int nextBlank, HunkStore toAppendTo) {
         while (fillTo > fillFrom) {
             // While the next blank is already passed, get the next one
-            while (nextBlank != null && nextBlank.getValue() <= fillFrom) {
-                nextBlank = getNextOrNull(nextBlankItr);
+            while (nextBlank < blanks.size()
+                    && blanks.getEndExclusive(nextBlank) <= fillFrom) {
+                nextBlank++;
             }
 
             // See if the blank starts after this hunk or there are no more blanks. If so, we have
-            // no
-            // blanks in this gap and can finish filling in with source reads
-            if (nextBlank == null || nextBlank.getKey() >= fillTo) {
+            // no blanks in this gap and can finish filling in with source reads
+            if (nextBlank >= blanks.size() || blanks.getStart(nextBlank) >= fillTo) {
                 // Fill to the next hunk with source reads
-                toAppendTo.add(new BpsHunkSourceRead("FILLER_READ_" + fillFrom, fillFrom,
-                        fillTo - fillFrom));
+                toAppendTo.append(FILLER_READ_NAME, HunkStore.NAME_AT_DESTINATION, 0, fillFrom,
+                        HunkStore.SOURCE_READ, fillTo - fillFrom, fillFrom);
                 fillFrom = fillTo;
             }
             // Otherwise the next blank overlaps with the space we are filling and we need to see
-            // how
-            // to split it up
+            // how to split it up
             else {
+                int blankStart = blanks.getStart(nextBlank);
                 // If the blank starts after the last end address, we need to do some source reads
-                // to the start of
-                // the next blank
-                if (nextBlank.getKey() > fillFrom) {
+                // to the start of the next blank
+                if (blankStart > fillFrom) {
                     // Fill to the blank with source reads
-                    toAppendTo.add(new BpsHunkSourceRead("FILLER_READ_" + fillFrom, fillFrom,
-                            nextBlank.getKey() - fillFrom));
-                    fillFrom = nextBlank.getKey(); // Causes the else to be hit in the next loop if
-                                                   // not start of next hunk
+                    toAppendTo.append(FILLER_READ_NAME, HunkStore.NAME_AT_DESTINATION, 0,
+                            fillFrom, HunkStore.SOURCE_READ, blankStart - fillFrom, fillFrom);
+                    fillFrom = blankStart; // Causes the else to be hit in the next loop
                 }
                 // If it starts at or before this fill segment, go ahead and do a blank hunk to the
                 // end of the blank/next hunk whichever is first
                 else {
-                    int blankEnd = nextBlank.getValue();
-                    if (blankEnd >= fillTo) {
-                        blankEnd = fillTo;
-                    }
-                    toAppendTo.add(new BpsHunkSelfRead("BLANKING_HUNK_" + fillFrom, fillFrom,
-                            fillByte, blankEnd - fillFrom));
+                    int blankEnd = Math.min(blanks.getEndExclusive(nextBlank), fillTo);
+                    toAppendTo.append(BLANKING_HUNK_NAME, HunkStore.NAME_AT_DESTINATION, 0,
+                            fillFrom, HunkStore.FILL, blankEnd - fillFrom, fillByte);
                     fillFrom = blankEnd;
                 }
             }
         }
+        return nextBlank;
     }
 
     private void optimizeAndPackHunks() {
-        TreeSet<BpsHunk> newHunks = new TreeSet<>();
-
-        // Convert source copies with the same dest & source to sourceReads
-        Iterator<BpsHunk> itr = hunks.iterator();
-        while (itr.hasNext()) {
-            BpsHunk hunk = itr.next();
-            if (hunk.getType() == BpsHunkType.SOURCE_COPY && ((BpsHunkCopy) hunk)
-                    .getCopyFromIndex() == ((BpsHunkCopy) hunk).getDestinationIndex()) {
-                newHunks.add(new BpsHunkSourceRead(hunk.getName() + "_AsSourceCopy",
-                        ((BpsHunkCopy) hunk).getCopyFromIndex(), hunk.getLength()));
-                itr.remove();
-            }
-        }
-        hunks.addAll(newHunks);
-        newHunks.clear();
-
-        // Now try to combine any we can
-        BpsHunk prevHunk = hunks.pollFirst();
-        if (prevHunk != null) {
-            BpsHunk nextHunk = null;
-            while ((nextHunk = hunks.pollFirst()) != null) {
-                if (!prevHunk.tryExtend(nextHunk)) {
-                    newHunks.add(prevHunk);
-                    prevHunk = nextHunk;
+        // Convert source copies with the same dest & source to source reads and combine
+        // any we can
+        hunks.pack();
+    }
+
+    public void writeBps(File file, List<AddressRange> toBlank) throws IOException {
+        writeBps(file, toBlank, false);
+    }
+
+    // Optionally reads the written patch back and checks it produces the same target we
+    // intended. The patch is mapped rather than read and the target is never created
+    public void writeBps(File file, List<AddressRange> toBlank, boolean verify)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeBps(channel, toBlank);
+            if (verify) {
+                try {
+                    BpsPatcher.verify(sourceBytes, getSourceCrcs(),
+                            channel.map(MapMode.READ_ONLY, 0, channel.size()));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(
+                            "Internal error: Written patch failed verification: "
+                                    + e.getMessage(),
+                            e);
                 }
             }
-
-            // add the last hunk being extended
-            newHunks.add(prevHunk);
         }
-        hunks = newHunks;
     }
 
-    private <T> T getNextOrNull(Iterator<T> itr) {
-        if (itr.hasNext()) {
-            return itr.next();
-        } else {
-            return null;
+    // Does not close the stream
+    public void writeBps(OutputStream stream, List<AddressRange> toBlank) throws IOException {
+        writeBps(Channels.newChannel(stream), toBlank);
+        stream.flush();
+    }
+
+    // Lists each hunk with its destination, length, type and name for debugging. Only
+    // includes the filler hunks if the patch has already been written. They are filled
+    // in with the blanks of the last patch written
+    public void writeSymbolMap(Appendable out) throws IOException {
+        finishBlocks();
+        HunkStore listed = hunks;
+        if (lastWrittenBlanks != null) {
+            optimizeAndPackHunks();
+            listed = fillHunkSpaces(hunks, getBlanksForWriting(lastWrittenBlanks), targetLength);
+        }
+        for (int index = 0; index < listed.size(); index++) {
+            out.append(String.format("%08X %08X %-11s %s%n", listed.getDestinationIndex(index),
+                    listed.getLength(index), HunkStore.typeName(listed.getType(index)),
+                    listed.getName(index)));
         }
     }
 
-    // TODO: Minor Take metadata?
-    public void writeBps(File file, List<AddressRange> toBlank) {
+    // Builds the full target the patch will create. This is not needed to write the patch
+    public byte[] createTargetBytes(List<AddressRange> toBlank) {
+        HunkStore filled = prepareHunksForWriting(toBlank);
+        return new BpsTargetView(sourceBytes, getSourceCrcs(), filled).createTargetBytes();
+    }
+
+    // Gives the queued hunks packed and with the gaps between them filled. The queued hunks
+    // are packed in place but are otherwise left as they are
+    HunkStore prepareHunksForWriting(List<AddressRange> toBlank) {
         // Ensure any pending ones are finalized prior to writing
-        finalizeSelfReadBeingCreated();
+        finishBlocks();
+        PhaseTimer timer = PhaseTimer.start(Phase.PACK);
         optimizeAndPackHunks();
+        timer.finish(stats, targetLength);
 
-        // We aren't making the rom longer so we pass the same length twice
-        fillHunkSpacesWithBlanksOrSourceReads(sourceBytes.length, sourceBytes.length, toBlank);
+        timer = PhaseTimer.start(Phase.FILL);
+        HunkStore filled = fillHunkSpaces(hunks, getBlanksForWriting(toBlank), targetLength);
+        lastWrittenBlanks = new ArrayList<>(toBlank);
+        timer.finish(stats, targetLength);
 
         // TODO: Overlap & gap (target final length) checking?
+        return filled;
+    }
 
-        // Set the offsets for writing
-        BpsHunkCopy.setOffsetsForWriting();
+    // Finalizes and matches all the blocks written so far and brings in the hunks from the
+    // block writers. This is the only place hunks from different writers are checked
+    // against each other
+    private void finishBlocks() {
+        finalizeSelfReadBeingCreated();
+        // The matching tasks need the source index so we can't hold the lock while they run
+        hunks = blockBuilder.finishPendingBlocks(hunks, matchPool);
+        List<BpsBlockWriter> toMerge;
+        synchronized (this) {
+            toMerge = new ArrayList<>(blockWriters);
+        }
+        for (BpsBlockWriter blockWriter : toMerge) {
+            HunkStore blockHunks = blockWriter.finishHunks(matchPool);
+            if (blockHunks.size() > 0) {
+                hunks = HunkStore.merge(hunks, blockHunks, payloads);
+                blockHunks.clear();
+            }
+        }
+    }
 
-        // TODO: Support differing sizes
-        byte[] targetBytes = sourceBytes.clone();
+    SourceCrcTable getSourceCrcs() {
+        // The source never changes so only the first writer to need them works them out
+        if (source.hasCrcs()) {
+            return source.getCrcs(crc32Engine);
+        }
+        PhaseTimer timer = PhaseTimer.start(Phase.CRC);
+        SourceCrcTable sourceCrcs = source.getCrcs(crc32Engine);
+        timer.finish(stats, sourceBytes.limit());
+        return sourceCrcs;
+    }
 
-        // Start writing the bytes for the BPS and the header
-        try (ByteArrayOutputStream bpsOs = new ByteArrayOutputStream();
-                FileOutputStream fos = new FileOutputStream(file)) {
-            bpsOs.write('B');
-            bpsOs.write('P');
-            bpsOs.write('S');
-            bpsOs.write('1');
+    public long estimatePatchSize() {
+        return estimatePatchSize(new ArrayList<>());
+    }
 
-            // Write the sizes in four byte sizes
-            bpsOs.write(ByteUtils.sevenBitEncode(sourceBytes.length));
-            bpsOs.write(ByteUtils.sevenBitEncode(targetBytes.length));
-            bpsOs.write(ByteUtils.sevenBitEncode(0)); // TODO: Minor For now no metadata
+    // Size of the patch writing it now with the same blanks would give. Finishes the blocks
+    // but otherwise leaves the hunks and blanks as they are. None of the self read data is
+    // read and no CRCs are computed so it is much cheaper than writing the patch
+    public long estimatePatchSize(List<AddressRange> toBlank) {
+        finishBlocks();
+        HunkStore packed = hunks.copy();
+        packed.pack();
+        IntervalSet blanks = getBlanksForWriting(toBlank);
+
+        return MAGIC_SIZE + BpsHunk.sevenBitEncodedSize(sourceBytes.limit())
+                + BpsHunk.sevenBitEncodedSize(targetLength) + BpsHunk.sevenBitEncodedSize(0)
+                + fillHunkSpaces(packed, blanks, targetLength).getEncodedSize() + FOOTER_SIZE;
+    }
 
-            // Write the hunks to the patch output stream
-            for (BpsHunk hunk : hunks) {
-                hunk.write(bpsOs);
-            }
+    // TODO: Minor Take metadata?
+    // Does not close the channel. The blanks are only used for this patch. The writer can
+    // keep being added to and written again afterwards
+    public void writeBps(WritableByteChannel channel, List<AddressRange> toBlank)
+            throws IOException {
+        HunkStore filled = prepareHunksForEncoding(toBlank);
+        BpsPatchOutput bpsOs = startPatch(channel);
+        writeHunks(filled, bpsOs);
+        finishPatch(bpsOs, computeTargetCrc32(filled));
+    }
 
-            // Write the source CRC
-            bpsOs.write(ByteUtils.toLittleEndianBytes(ByteUtils.computeCrc32(sourceBytes), 4));
+    // Writes the patch on the common pool so the calling thread isn't held up by it. The
+    // file is opened before this returns and closed once the patch has been written
+    public CompletableFuture<Void> writeBpsAsync(File file, List<AddressRange> toBlank)
+            throws IOException {
+        return writeBpsAsync(file, toBlank, ForkJoinPool.commonPool());
+    }
 
-            // Next we need to determine the target CRC by applying the patch and computing
-            // the CRC on the patch bytes and then write that
-            for (BpsHunk hunk : hunks) {
-                hunk.apply(targetBytes, sourceBytes);
+    public CompletableFuture<Void> writeBpsAsync(File file, List<AddressRange> toBlank,
+            Executor executor) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        return writeBpsAsync(channel, toBlank, executor).whenComplete((done, failure) -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            bpsOs.write(ByteUtils.toLittleEndianBytes(ByteUtils.computeCrc32(targetBytes), 4));
-
-            // Finally we need to put the CRC of the patch itself
-            // So we get the BPS bytes written, write them, calculate the CRC
-            // then write that
-            byte[] bpsBytes = bpsOs.toByteArray();
-            // TODO: BPS temp
-            // fos.write(targetBytes);
-            fos.write(bpsBytes);
-            fos.write(ByteUtils.toLittleEndianBytes(ByteUtils.computeCrc32(bpsBytes), 4));
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        });
+    }
+
+    // Writes the patch on the executor and completes once all of it is in the channel. The
+    // target CRC is worked out at the same time as the hunks are encoded and the encoded
+    // bytes are written to the channel as more of them are encoded. The patch is the same
+    // as writeBps gives. Neither this writer nor its block writers can be used until the
+    // future completes. IOExceptions complete it exceptionally wrapped in an
+    // UncheckedIOException. Does not close the channel
+    public CompletableFuture<Void> writeBpsAsync(WritableByteChannel channel,
+            List<AddressRange> toBlank, Executor executor) {
+        List<AddressRange> blanks = new ArrayList<>(toBlank);
+        return CompletableFuture.supplyAsync(() -> prepareHunksForEncoding(blanks), executor)
+                .thenCompose(filled -> {
+                    CompletableFuture<Long> targetCrc = CompletableFuture
+                            .supplyAsync(() -> computeTargetCrc32(filled), executor);
+                    PipelinedChannel pipeline = new PipelinedChannel(channel, executor);
+                    return CompletableFuture
+                            .supplyAsync(() -> encodePatch(pipeline, filled), executor)
+                            .thenCombine(targetCrc,
+                                    (bpsOs, crc) -> finishPipelinedPatch(pipeline, bpsOs, crc))
+                            .whenComplete((done, failure) -> {
+                                if (failure != null) {
+                                    pipeline.discard();
+                                }
+                            });
+                });
+    }
+
+    // Fills in the hunks and lines the encoding cache up with them before they are
+    // encoded and hashed
+    private HunkStore prepareHunksForEncoding(List<AddressRange> toBlank) {
+        HunkStore filled = prepareHunksForWriting(toBlank);
+        if (encodingCache != null) {
+            encodingCache.update(filled);
+        }
+        return filled;
+    }
+
+    // Starts writing the bytes for the BPS and the header. The patch CRC is computed as the
+    // bytes go out
+    private BpsPatchOutput startPatch(WritableByteChannel channel) throws IOException {
+        BpsPatchOutput bpsOs = new BpsPatchOutput(channel);
+        bpsOs.write('B');
+        bpsOs.write('P');
+        bpsOs.write('S');
+        bpsOs.write('1');
+
+        // Write the sizes in four byte sizes
+        bpsOs.writeNumber(sourceBytes.limit());
+        bpsOs.writeNumber(targetLength);
+        bpsOs.writeNumber(0); // TODO: Minor For now no metadata
+        return bpsOs;
+    }
+
+    // Writes the hunks to the patch output stream
+    private void writeHunks(HunkStore filled, BpsPatchOutput bpsOs) throws IOException {
+        PhaseTimer timer = PhaseTimer.start(Phase.ENCODE);
+        if (encodingCache != null) {
+            encodingCache.write(bpsOs, stats);
+        } else {
+            filled.write(bpsOs, stats);
+        }
+        timer.finish(stats, targetLength);
+    }
+
+    // Every byte of the target is covered by a hunk after filling the gaps so we can build
+    // the target CRC up from the CRCs of each hunk without creating the target
+    private long computeTargetCrc32(HunkStore filled) {
+        SourceCrcTable sourceCrcs = getSourceCrcs();
+        PhaseTimer timer = PhaseTimer.start(Phase.CRC);
+        BpsTargetView target = new BpsTargetView(sourceBytes, sourceCrcs, filled);
+        long targetCrc = encodingCache != null ? encodingCache.computeCrc32(target)
+                : target.computeCrc32();
+        timer.finish(stats, targetLength);
+        return targetCrc;
+    }
+
+    private void finishPatch(BpsPatchOutput bpsOs, long targetCrc) throws IOException {
+        bpsOs.writeLittleEndian32(getSourceCrcs().getSourceCrc32());
+        bpsOs.writeLittleEndian32(targetCrc);
+
+        // Finally we need to put the CRC of the patch itself
+        bpsOs.writeLittleEndian32(bpsOs.getCrc32());
+        bpsOs.flush();
+    }
+
+    private BpsPatchOutput encodePatch(PipelinedChannel pipeline, HunkStore filled) {
+        try {
+            BpsPatchOutput bpsOs = startPatch(pipeline);
+            writeHunks(filled, bpsOs);
+            return bpsOs;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Void finishPipelinedPatch(PipelinedChannel pipeline, BpsPatchOutput bpsOs,
+            long targetCrc) {
+        try {
+            finishPatch(bpsOs, targetCrc);
+            // Waits for the rest of the patch to go out to the channel
+            pipeline.close();
+            return null;
         } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            throw new UncheckedIOException(e);
         }
     }
 }
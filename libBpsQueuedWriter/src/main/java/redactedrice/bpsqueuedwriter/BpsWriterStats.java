@@ -0,0 +1,129 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+import redactedrice.bpsqueuedwriter.BpsHunk.BpsHunkType;
+
+// What a writer has done so far. The hunk counts and sizes are for the last patch written.
+// Everything else adds up from when the writer was made or last reset including blocks
+// finished on other threads so it can be read at any time to see where a run is spending
+// its time. Resetting the writer clears these same stats rather than making new ones
+public class BpsWriterStats {
+    public enum Phase {
+        // Turning finished blocks into hunks including matching them against the source
+        FINALIZE,
+        // Combining neighboring hunks
+        PACK,
+        // Filling the gaps between the hunks with source reads and blanks
+        FILL,
+        // Writing the hunks into the patch
+        ENCODE,
+        // Computing the source and target CRCs
+        CRC
+    }
+
+    // Indexed by the BPS value of the type
+    private final long[] hunkCounts;
+    private final long[] hunkBytes;
+    private final LongAdder bytesSavedByHints;
+    private final LongAdder matchComparisons;
+    private final LongAdder[] phaseNanos;
+
+    BpsWriterStats() {
+        hunkCounts = new long[BpsHunkType.values().length];
+        hunkBytes = new long[BpsHunkType.values().length];
+        bytesSavedByHints = new LongAdder();
+        matchComparisons = new LongAdder();
+        phaseNanos = new LongAdder[Phase.values().length];
+        for (int phase = 0; phase < phaseNanos.length; phase++) {
+            phaseNanos[phase] = new LongAdder();
+        }
+    }
+
+    // Number of hunks of the type in the last patch written. Fills are counted as the
+    // hunks they were written as
+    public long getHunkCount(BpsHunkType type) {
+        return hunkCounts[type.getValue()];
+    }
+
+    // Target bytes the hunks of the type created in the last patch written
+    public long getHunkBytes(BpsHunkType type) {
+        return hunkBytes[type.getValue()];
+    }
+
+    // Bytes of blocks that were copied from a hinted part of the source instead of being
+    // written into the patch
+    public long getBytesSavedByHints() {
+        return bytesSavedByHints.sum();
+    }
+
+    // Roughly how many bytes and index entries have been compared looking for matches for
+    // blocks
+    public long getMatchComparisons() {
+        return matchComparisons.sum();
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    void clear() {
+        clearHunks();
+        bytesSavedByHints.reset();
+        matchComparisons.reset();
+        for (LongAdder nanos : phaseNanos) {
+            nanos.reset();
+        }
+    }
+
+    void clearHunks() {
+        for (int type = 0; type < hunkCounts.length; type++) {
+            hunkCounts[type] = 0;
+            hunkBytes[type] = 0;
+        }
+    }
+
+    void addHunk(byte type, long length) {
+        hunkCounts[type]++;
+        hunkBytes[type] += length;
+    }
+
+    // Adds the hunks counted in the other stats to these
+    void addHunks(BpsWriterStats other) {
+        for (int type = 0; type < hunkCounts.length; type++) {
+            hunkCounts[type] += other.hunkCounts[type];
+            hunkBytes[type] += other.hunkBytes[type];
+        }
+    }
+
+    void addBytesSavedByHints(long bytes) {
+        bytesSavedByHints.add(bytes);
+    }
+
+    // Shared with the matching code so it can add what it compared without knowing
+    // about the rest of the stats
+    LongAdder getMatchComparisonCounter() {
+        return matchComparisons;
+    }
+
+    void addPhaseNanos(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].add(nanos);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (BpsHunkType type : BpsHunkType.values()) {
+            builder.append(String.format("%-11s %8d hunks %10d bytes%n", type,
+                    getHunkCount(type), getHunkBytes(type)));
+        }
+        builder.append(String.format("Saved by hints %10d bytes%n", getBytesSavedByHints()));
+        builder.append(String.format("Compared %16d bytes%n", getMatchComparisons()));
+        for (Phase phase : Phase.values()) {
+            builder.append(String.format("%-8s %13.3f ms%n", phase,
+                    getPhaseNanos(phase) / 1_000_000.0));
+        }
+        return builder.toString();
+    }
+}
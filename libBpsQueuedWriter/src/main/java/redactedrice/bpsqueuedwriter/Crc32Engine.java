@@ -0,0 +1,125 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+
+// Computes CRC32s of large buffers by splitting them into chunks that are hashed in
+// parallel with java.util.zip.CRC32 and then joined with a CRC combine. Small buffers
+// are just hashed directly since splitting them costs more than it saves
+public class Crc32Engine {
+    // Smallest piece of data we will hash on its own task
+    static final int MIN_CHUNK_SIZE = 0x40000;
+
+    private static final Crc32Engine DEFAULT = new Crc32Engine(ForkJoinPool.commonPool());
+
+    private final ForkJoinPool pool;
+
+    public Crc32Engine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public static Crc32Engine getDefault() {
+        return DEFAULT;
+    }
+
+    public long crc32(byte[] bytes) {
+        return crc32(bytes, 0, bytes.length);
+    }
+
+    public long crc32(byte[] bytes, int offset, int length) {
+        return crc32(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    // Hashes the remaining bytes of the buffer without changing its position
+    public long crc32(ByteBuffer buffer) {
+        ByteBuffer toHash = buffer.slice();
+        if (toHash.remaining() < 2 * MIN_CHUNK_SIZE) {
+            return hash(toHash);
+        }
+        return pool.invoke(new ChunkCrcTask(toHash));
+    }
+
+    // CRCs of each segment of the buffer. The last one may be shorter than the others
+    long[] segmentCrc32s(ByteBuffer buffer, int segmentSize) {
+        ByteBuffer toHash = buffer.slice();
+        int segments = (toHash.remaining() + segmentSize - 1) / segmentSize;
+        long[] crcs = new long[segments];
+        SegmentCrcTask task = new SegmentCrcTask(toHash, segmentSize, crcs, 0, segments);
+        if (toHash.remaining() < 2 * MIN_CHUNK_SIZE) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+        return crcs;
+    }
+
+    private static long hash(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return crc.getValue();
+    }
+
+    private static class ChunkCrcTask extends RecursiveTask<Long> {
+        private final ByteBuffer buffer;
+
+        ChunkCrcTask(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        protected Long compute() {
+            int length = buffer.remaining();
+            if (length < 2 * MIN_CHUNK_SIZE) {
+                return hash(buffer);
+            }
+
+            int half = length / 2;
+            ChunkCrcTask first = new ChunkCrcTask(buffer.slice(0, half));
+            ChunkCrcTask second = new ChunkCrcTask(buffer.slice(half, length - half));
+            second.fork();
+            long firstCrc = first.compute();
+            return Crc32Utils.combine(firstCrc, second.join(), length - half);
+        }
+    }
+
+    private static class SegmentCrcTask extends RecursiveAction {
+        private final ByteBuffer buffer;
+        private final int segmentSize;
+        private final long[] crcs;
+        private final int firstSegment;
+        private final int endSegment;
+
+        SegmentCrcTask(ByteBuffer buffer, int segmentSize, long[] crcs, int firstSegment,
+                int endSegment) {
+            this.buffer = buffer;
+            this.segmentSize = segmentSize;
+            this.crcs = crcs;
+            this.firstSegment = firstSegment;
+            this.endSegment = endSegment;
+        }
+
+        @Override
+        protected void compute() {
+            int segments = endSegment - firstSegment;
+            if (segments > 1 && (long) segments * segmentSize >= 2 * MIN_CHUNK_SIZE) {
+                int middle = firstSegment + segments / 2;
+                invokeAll(new SegmentCrcTask(buffer, segmentSize, crcs, firstSegment, middle),
+                        new SegmentCrcTask(buffer, segmentSize, crcs, middle, endSegment));
+                return;
+            }
+
+            CRC32 crc = new CRC32();
+            for (int segment = firstSegment; segment < endSegment; segment++) {
+                int start = segment * segmentSize;
+                int length = Math.min(segmentSize, buffer.limit() - start);
+                crc.reset();
+                crc.update(buffer.slice(start, length));
+                crcs[segment] = crc.getValue();
+            }
+        }
+    }
+}
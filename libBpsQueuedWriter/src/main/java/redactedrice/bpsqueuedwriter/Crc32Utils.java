@@ -0,0 +1,100 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+// CRC32 helpers for joining checksums of adjacent pieces of data without rehashing
+// them. Uses the same polynomial as java.util.zip.CRC32 so the results can be mixed
+// with it. Based on the approach used by zlib's crc32_combine
+final class Crc32Utils {
+    private static final int POLYNOMIAL = 0xEDB88320;
+    // x^(2^n) modulo the polynomial
+    private static final int[] X_TO_2_TO_N = new int[32];
+
+    static {
+        int power = 1 << 30; // x^1
+        X_TO_2_TO_N[0] = power;
+        for (int n = 1; n < 32; n++) {
+            power = multiplyModPolynomial(power, power);
+            X_TO_2_TO_N[n] = power;
+        }
+    }
+
+    private Crc32Utils() {
+        // Utility class
+    }
+
+    static long crc32(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    // Doesn't change the buffer's position
+    static long crc32(ByteBuffer bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes.slice(offset, length));
+        return crc.getValue();
+    }
+
+    // CRC of the first data followed by the second data
+    static long combine(long firstCrc, long secondCrc, long secondLength) {
+        return (shift(firstCrc, secondLength) ^ secondCrc) & 0xFFFFFFFFL;
+    }
+
+    // The inverse of combine. Gets the CRC of the second data given the CRC of both and
+    // the CRC of the first
+    static long removePrefix(long combinedCrc, long firstCrc, long secondLength) {
+        return (combinedCrc ^ shift(firstCrc, secondLength)) & 0xFFFFFFFFL;
+    }
+
+    // Precomputes the part of combine that only depends on the length of the second data
+    // so joining many pieces of the same length is cheaper
+    static int lengthOperator(long secondLength) {
+        return xToEightNModPolynomial(secondLength);
+    }
+
+    static long combineWithOperator(long firstCrc, long secondCrc, int lengthOperator) {
+        return (multiplyModPolynomial(lengthOperator, (int) firstCrc) & 0xFFFFFFFFL) ^ secondCrc;
+    }
+
+    // Advances the CRC as if length zero bytes were appended without the pre and post
+    // conditioning
+    private static long shift(long crc, long length) {
+        if (length == 0) {
+            return crc;
+        }
+        return multiplyModPolynomial(xToEightNModPolynomial(length), (int) crc) & 0xFFFFFFFFL;
+    }
+
+    private static int multiplyModPolynomial(int a, int b) {
+        int mask = 1 << 31;
+        int product = 0;
+        while (true) {
+            if ((a & mask) != 0) {
+                product ^= b;
+                if ((a & (mask - 1)) == 0) {
+                    break;
+                }
+            }
+            mask >>>= 1;
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLYNOMIAL : b >>> 1;
+        }
+        return product;
+    }
+
+    // x^(8 * n) modulo the polynomial
+    private static int xToEightNModPolynomial(long n) {
+        int power = 1 << 31; // x^0
+        int k = 3;
+        while (n != 0) {
+            if ((n & 1) != 0) {
+                power = multiplyModPolynomial(X_TO_2_TO_N[k & 31], power);
+            }
+            n >>>= 1;
+            k++;
+        }
+        return power;
+    }
+}
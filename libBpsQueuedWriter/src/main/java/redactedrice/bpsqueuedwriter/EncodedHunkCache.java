@@ -0,0 +1,201 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+// The encoded bytes and target CRCs of the last patch written split up into windows of the
+// target so writing the patch again after a small change only encodes and hashes the
+// windows around the change. Rather than tracking each change as it is made, each window
+// is compared hunk by hunk with the one from the last patch that started at the same place
+// since hunks come in from blocks, block writers, blanks and the target length. That is
+// only integer compares so it costs far less than encoding and hashing the window again
+class EncodedHunkCache {
+    // Roughly how much of the target each window covers. Windows only end where the hunks
+    // on either side would be written the same way apart so some are longer
+    static final int WINDOW_SIZE = 0x4000;
+
+    private static class Window {
+        final int startIndex;
+        final int endIndex;
+        final int firstHunk;
+        final int endHunk;
+        // Lowest target index the target copies in the window read from or the start of
+        // the window if they only read inside it
+        final int targetReadStart;
+
+        // Copy offsets are relative to where the copies before them ended so the encoded
+        // bytes can only be used again if those ended in the same places
+        long sourceCopyEndBefore;
+        long targetCopyEndBefore;
+        long sourceCopyEndAfter;
+        long targetCopyEndAfter;
+        byte[] encoded;
+        BpsWriterStats hunkStats;
+        boolean hasCrc;
+        long crc;
+
+        Window(HunkStore hunks, int firstHunk, int endHunk) {
+            this.firstHunk = firstHunk;
+            this.endHunk = endHunk;
+            startIndex = hunks.getDestinationIndex(firstHunk);
+            endIndex = hunks.getEndIndex(endHunk - 1);
+
+            int readStart = startIndex;
+            for (int index = firstHunk; index < endHunk; index++) {
+                if (hunks.getType(index) == HunkStore.TARGET_COPY) {
+                    readStart = Math.min(readStart, hunks.getCopyFromIndex(index));
+                }
+            }
+            targetReadStart = readStart;
+            encoded = null;
+            hasCrc = false;
+        }
+
+        void reuse(Window previous) {
+            sourceCopyEndBefore = previous.sourceCopyEndBefore;
+            targetCopyEndBefore = previous.targetCopyEndBefore;
+            sourceCopyEndAfter = previous.sourceCopyEndAfter;
+            targetCopyEndAfter = previous.targetCopyEndAfter;
+            encoded = previous.encoded;
+            hunkStats = previous.hunkStats;
+            hasCrc = previous.hasCrc;
+            crc = previous.crc;
+        }
+    }
+
+    // The hunks the windows are for. Kept as they were written so the next patch can be
+    // compared against them
+    private HunkStore hunks;
+    private List<Window> windows;
+    // Windows are encoded here on their own and then copied into the patch
+    private final ByteArrayOutputStream encodedBytes;
+    private final BpsPatchOutput encoder;
+
+    EncodedHunkCache() {
+        hunks = null;
+        windows = new ArrayList<>();
+        encodedBytes = new ByteArrayOutputStream();
+        encoder = new BpsPatchOutput(Channels.newChannel(encodedBytes));
+    }
+
+    void clear() {
+        hunks = null;
+        windows = new ArrayList<>();
+    }
+
+    // Splits the hunks up into windows and takes what it can from the windows of the last
+    // patch. The hunks must cover the whole target and must not be changed afterwards
+    void update(HunkStore filled) {
+        List<Window> previousWindows = windows;
+        HunkStore previousHunks = hunks;
+        hunks = filled;
+        windows = split(filled);
+
+        int previous = 0;
+        for (Window window : windows) {
+            while (previous < previousWindows.size()
+                    && previousWindows.get(previous).startIndex < window.startIndex) {
+                previous++;
+            }
+            if (previous < previousWindows.size()
+                    && isSameHunks(window, previousHunks, previousWindows.get(previous))) {
+                window.reuse(previousWindows.get(previous));
+            }
+        }
+    }
+
+    // Windows start at the first hunk at or past each multiple of the window size that
+    // doesn't carry on the self read before it. Since where they start only depends on the
+    // hunks around that spot, a change only moves the windows up to the next multiple past
+    // it and the ones after line up with the last patch's again
+    private static List<Window> split(HunkStore filled) {
+        List<Window> split = new ArrayList<>();
+        int first = 0;
+        long nextWindowStart = WINDOW_SIZE;
+        for (int index = 1; index < filled.size(); index++) {
+            int destinationIndex = filled.getDestinationIndex(index);
+            if (destinationIndex >= nextWindowStart && !filled.continuesSelfRead(index)) {
+                split.add(new Window(filled, first, index));
+                first = index;
+                nextWindowStart = ((long) destinationIndex / WINDOW_SIZE + 1) * WINDOW_SIZE;
+            }
+        }
+        if (filled.size() > 0) {
+            split.add(new Window(filled, first, filled.size()));
+        }
+        return split;
+    }
+
+    private boolean isSameHunks(Window window, HunkStore previousHunks, Window previous) {
+        int count = window.endHunk - window.firstHunk;
+        if (previous.startIndex != window.startIndex
+                || previous.endHunk - previous.firstHunk != count) {
+            return false;
+        }
+        for (int offset = 0; offset < count; offset++) {
+            if (!hunks.isSameHunk(window.firstHunk + offset, previousHunks,
+                    previous.firstHunk + offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Writes the hunks the same as HunkStore.write would, only encoding the windows that
+    // changed or that follow copies that now end somewhere else
+    void write(BpsPatchOutput bpsOs, BpsWriterStats stats) throws IOException {
+        stats.clearHunks();
+        for (Window window : windows) {
+            long sourceCopyEnd = bpsOs.getLastSourceCopyEnd();
+            long targetCopyEnd = bpsOs.getLastTargetCopyEnd();
+            if (window.encoded == null || window.sourceCopyEndBefore != sourceCopyEnd
+                    || window.targetCopyEndBefore != targetCopyEnd) {
+                encode(window, sourceCopyEnd, targetCopyEnd);
+            }
+            bpsOs.write(window.encoded);
+            bpsOs.setLastCopyEnds(window.sourceCopyEndAfter, window.targetCopyEndAfter);
+            stats.addHunks(window.hunkStats);
+        }
+    }
+
+    private void encode(Window window, long sourceCopyEnd, long targetCopyEnd)
+            throws IOException {
+        encodedBytes.reset();
+        encoder.setLastCopyEnds(sourceCopyEnd, targetCopyEnd);
+        BpsWriterStats hunkStats = new BpsWriterStats();
+        hunks.write(encoder, hunkStats, window.firstHunk, window.endHunk);
+        encoder.flush();
+
+        window.sourceCopyEndBefore = sourceCopyEnd;
+        window.targetCopyEndBefore = targetCopyEnd;
+        window.sourceCopyEndAfter = encoder.getLastSourceCopyEnd();
+        window.targetCopyEndAfter = encoder.getLastTargetCopyEnd();
+        window.encoded = encodedBytes.toByteArray();
+        window.hunkStats = hunkStats;
+    }
+
+    // CRC of the whole target the view is for. Windows that weren't changed keep the CRC
+    // they had unless they target copy from somewhere before them that was changed
+    long computeCrc32(BpsTargetView view) {
+        IntervalSet changed = new IntervalSet();
+        long crc = 0;
+        for (Window window : windows) {
+            if (!window.hasCrc || readsChanged(window, changed)) {
+                window.crc = view.computeCrc32(window.firstHunk, window.endHunk);
+                window.hasCrc = true;
+                changed.add(window.startIndex, window.endIndex);
+            }
+            crc = Crc32Utils.combine(crc, window.crc, window.endIndex - window.startIndex);
+        }
+        return crc;
+    }
+
+    private static boolean readsChanged(Window window, IntervalSet changed) {
+        int next = changed.firstEndingAtOrAfter(window.targetReadStart + 1);
+        return next < changed.size() && changed.getStart(next) < window.startIndex;
+    }
+}
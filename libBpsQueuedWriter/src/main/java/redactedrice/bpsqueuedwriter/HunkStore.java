@@ -0,0 +1,529 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import redactedrice.bpsqueuedwriter.BpsHunk.BpsHunkType;
+import redactedrice.bpsqueuedwriter.BpsWriter.BpsHunkCopyType;
+
+// The hunks of a patch sorted by destination index and kept in parallel primitive arrays
+// rather than as individual objects so tens of thousands of small hunks don't each need
+// their own allocation. Self read data lives in payload arenas and self reads only hold the
+// arena and the offset of their bytes in it. Stores built by different threads each add to
+// their own arena and keep pointing at it once they are merged together
+class HunkStore {
+    static final byte SOURCE_READ = 0;
+    static final byte SELF_READ = 1;
+    static final byte SOURCE_COPY = 2;
+    static final byte TARGET_COPY = 3;
+    // Not a BPS type. A self read of a single repeated byte that is kept in the copy from
+    // column so blanked space doesn't need an array of its own
+    static final byte FILL = 4;
+
+    // How the name of a hunk is built from its base name. Names are only put together
+    // when something asks for them so the many hunks that are never named don't each
+    // need a string
+    static final byte NAME_AS_GIVEN = 0;
+    static final byte NAME_NUMBERED_SELF_READ = 1;
+    static final byte NAME_NUMBERED_COPY = 2;
+    static final byte NAME_AT_DESTINATION = 3;
+    static final byte NAME_NUMBERED_FILL = 4;
+
+    private static final int DEFAULT_CAPACITY = 64;
+    // Shortest fill that could be smaller written as a target copy
+    private static final int MIN_REPEATED_FILL_LENGTH = 4;
+    private static final int SELF_READ_HEADER_SIZE = 1;
+
+    private int size;
+    private int[] destinations;
+    private int[] lengths;
+    private byte[] types;
+    // The copy from index for copies, the destination for source reads, the offset into
+    // the arena for self reads and the byte to repeat for fills
+    private int[] copyFroms;
+    private String[] baseNames;
+    private byte[] nameKinds;
+    private int[] nameNumbers;
+    private PayloadArena[] arenas;
+
+    // The arena hunks added to this store use
+    private final PayloadArena arena;
+
+    HunkStore(PayloadArena arena) {
+        this(arena, DEFAULT_CAPACITY);
+    }
+
+    HunkStore(PayloadArena arena, int capacity) {
+        this.arena = arena;
+        capacity = Math.max(capacity, 1);
+        destinations = new int[capacity];
+        lengths = new int[capacity];
+        types = new byte[capacity];
+        copyFroms = new int[capacity];
+        baseNames = new String[capacity];
+        nameKinds = new byte[capacity];
+        nameNumbers = new int[capacity];
+        arenas = new PayloadArena[capacity];
+    }
+
+    static byte toStoreType(BpsHunkCopyType type) {
+        return type == BpsHunkCopyType.SOURCE_COPY ? SOURCE_COPY : TARGET_COPY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getDestinationIndex(int index) {
+        return destinations[index];
+    }
+
+    int getLength(int index) {
+        return lengths[index];
+    }
+
+    int getEndIndex(int index) {
+        return destinations[index] + lengths[index];
+    }
+
+    byte getType(int index) {
+        return types[index];
+    }
+
+    int getCopyFromIndex(int index) {
+        return copyFroms[index];
+    }
+
+    PayloadArena getArena() {
+        return arena;
+    }
+
+    // The arena the self read's bytes are in
+    PayloadArena getArena(int index) {
+        return arenas[index];
+    }
+
+    String getName(int index) {
+        return formatName(baseNames[index], nameKinds[index], nameNumbers[index],
+                destinations[index]);
+    }
+
+    static String formatName(String baseName, byte nameKind, int nameNumber,
+            int destinationIndex) {
+        switch (nameKind) {
+        case NAME_NUMBERED_SELF_READ:
+            return baseName + nameNumber + "_selfRead";
+        case NAME_NUMBERED_COPY:
+            return baseName + nameNumber + "_copy";
+        case NAME_NUMBERED_FILL:
+            return baseName + nameNumber + "_fill";
+        case NAME_AT_DESTINATION:
+            return baseName + destinationIndex;
+        default:
+            return baseName;
+        }
+    }
+
+    static String typeName(byte type) {
+        return type == FILL ? "FILL" : BpsHunkType.values()[type].name();
+    }
+
+    void add(String name, int destinationIndex, byte type, int length, int copyFromIndex) {
+        add(name, NAME_AS_GIVEN, 0, destinationIndex, type, length, copyFromIndex);
+    }
+
+    // Adds the hunk in order making sure it doesn't overlap the hunks around it. Hunks
+    // are usually added in increasing order so this is normally just an append
+    void add(String baseName, byte nameKind, int nameNumber, int destinationIndex, byte type,
+            int length, int copyFromIndex) {
+        add(baseName, nameKind, nameNumber, destinationIndex, type, length, copyFromIndex, arena);
+    }
+
+    // Keeps pointing at the arena the other store's hunk uses
+    void add(HunkStore other, int index) {
+        add(other.baseNames[index], other.nameKinds[index], other.nameNumbers[index],
+                other.destinations[index], other.types[index], other.lengths[index],
+                other.copyFroms[index], other.arenas[index]);
+    }
+
+    private void add(String baseName, byte nameKind, int nameNumber, int destinationIndex,
+            byte type, int length, int copyFromIndex, PayloadArena hunkArena) {
+        int insertAt = size;
+        if (size > 0 && destinations[size - 1] > destinationIndex) {
+            insertAt = findIndex(destinationIndex) + 1;
+        }
+
+        // Check it against the ones on either side of where it goes
+        if (insertAt > 0 && getEndIndex(insertAt - 1) - 1 >= destinationIndex) {
+            throw new IllegalArgumentException("Overwrite of the previous hunk \""
+                    + getName(insertAt - 1) + "\"(starting at " + destinations[insertAt - 1]
+                    + " and ending at " + (getEndIndex(insertAt - 1) - 1)
+                    + ") was detected starting at " + destinationIndex + " while adding hunk \""
+                    + formatName(baseName, nameKind, nameNumber, destinationIndex) + "\"");
+        }
+        if (insertAt < size && destinationIndex + length - 1 >= destinations[insertAt]) {
+            throw new IllegalArgumentException("Overwrite of the next hunk \""
+                    + getName(insertAt) + "\"(starting at " + destinations[insertAt]
+                    + ") was detected while checking hunk \""
+                    + formatName(baseName, nameKind, nameNumber, destinationIndex)
+                    + "\" starting at " + destinationIndex + " and ending at "
+                    + (destinationIndex + length - 1));
+        }
+
+        ensureCapacity(size + 1);
+        if (insertAt < size) {
+            int toMove = size - insertAt;
+            System.arraycopy(destinations, insertAt, destinations, insertAt + 1, toMove);
+            System.arraycopy(lengths, insertAt, lengths, insertAt + 1, toMove);
+            System.arraycopy(types, insertAt, types, insertAt + 1, toMove);
+            System.arraycopy(copyFroms, insertAt, copyFroms, insertAt + 1, toMove);
+            System.arraycopy(baseNames, insertAt, baseNames, insertAt + 1, toMove);
+            System.arraycopy(nameKinds, insertAt, nameKinds, insertAt + 1, toMove);
+            System.arraycopy(nameNumbers, insertAt, nameNumbers, insertAt + 1, toMove);
+            System.arraycopy(arenas, insertAt, arenas, insertAt + 1, toMove);
+        }
+        set(insertAt, baseName, nameKind, nameNumber, destinationIndex, type, length,
+                copyFromIndex, hunkArena);
+        size++;
+    }
+
+    // Adds a hunk to the end without any checks. Used when building a store from one that
+    // is already known to be in order
+    void append(String name, int destinationIndex, byte type, int length, int copyFromIndex) {
+        append(name, NAME_AS_GIVEN, 0, destinationIndex, type, length, copyFromIndex);
+    }
+
+    void append(String baseName, byte nameKind, int nameNumber, int destinationIndex,
+            byte type, int length, int copyFromIndex) {
+        ensureCapacity(size + 1);
+        set(size, baseName, nameKind, nameNumber, destinationIndex, type, length, copyFromIndex,
+                arena);
+        size++;
+    }
+
+    // Keeps pointing at the arena the other store's hunk uses
+    void append(HunkStore other, int index) {
+        ensureCapacity(size + 1);
+        set(size, other.baseNames[index], other.nameKinds[index], other.nameNumbers[index],
+                other.destinations[index], other.types[index], other.lengths[index],
+                other.copyFroms[index], other.arenas[index]);
+        size++;
+    }
+
+    // Merges two sorted stores into a new one. Both were checked for overlaps as they were
+    // built so only hunks from different stores need to be checked against each other here
+    static HunkStore merge(HunkStore first, HunkStore second, PayloadArena arena) {
+        HunkStore merged = new HunkStore(arena, first.size + second.size);
+        int firstIndex = 0;
+        int secondIndex = 0;
+        while (firstIndex < first.size || secondIndex < second.size) {
+            if (secondIndex >= second.size || (firstIndex < first.size
+                    && first.destinations[firstIndex] <= second.destinations[secondIndex])) {
+                merged.appendChecked(first, firstIndex++);
+            } else {
+                merged.appendChecked(second, secondIndex++);
+            }
+        }
+        return merged;
+    }
+
+    private void appendChecked(HunkStore other, int index) {
+        if (size > 0 && getEndIndex(size - 1) > other.destinations[index]) {
+            throw new IllegalArgumentException("Overwrite of the previous hunk \""
+                    + getName(size - 1) + "\"(starting at " + destinations[size - 1]
+                    + " and ending at " + (getEndIndex(size - 1) - 1)
+                    + ") was detected starting at " + other.destinations[index]
+                    + " while adding hunk \"" + other.getName(index) + "\"");
+        }
+        append(other, index);
+    }
+
+    // The same hunks pointing at the same arenas
+    HunkStore copy() {
+        HunkStore copy = new HunkStore(arena, size);
+        for (int index = 0; index < size; index++) {
+            copy.append(this, index);
+        }
+        return copy;
+    }
+
+    void clear() {
+        Arrays.fill(baseNames, 0, size, null);
+        Arrays.fill(arenas, 0, size, null);
+        size = 0;
+    }
+
+    // Index of the last hunk starting at or before the target index or -1 if there isn't one
+    int findIndex(int targetIndex) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (destinations[mid] <= targetIndex) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // Turns copies from the same place they go into source reads and joins hunks that
+    // continue on from the one before them in a single pass over the store
+    void pack() {
+        int packed = 0;
+        for (int index = 0; index < size; index++) {
+            if (types[index] == SOURCE_COPY && copyFroms[index] == destinations[index]) {
+                types[index] = SOURCE_READ;
+            }
+
+            if (packed > 0 && tryExtend(packed - 1, index)) {
+                continue;
+            }
+            if (packed != index) {
+                set(packed, baseNames[index], nameKinds[index], nameNumbers[index],
+                        destinations[index], types[index], lengths[index], copyFroms[index],
+                        arenas[index]);
+            }
+            packed++;
+        }
+
+        // Let go of any names that were merged away
+        Arrays.fill(baseNames, packed, size, null);
+        Arrays.fill(arenas, packed, size, null);
+        size = packed;
+    }
+
+    private boolean tryExtend(int prev, int next) {
+        if (getEndIndex(prev) != destinations[next] || types[prev] != types[next]) {
+            return false;
+        }
+        switch (types[prev]) {
+        case SOURCE_READ:
+            break;
+        case SOURCE_COPY:
+        case TARGET_COPY:
+        case SELF_READ:
+            // Self reads that aren't next to each other in the arena are joined when
+            // they are written instead
+            if (copyFroms[prev] + lengths[prev] != copyFroms[next]
+                    || arenas[prev] != arenas[next]) {
+                return false;
+            }
+            break;
+        default:
+            if (copyFroms[prev] != copyFroms[next]) {
+                return false;
+            }
+            break;
+        }
+        lengths[prev] += lengths[next];
+        return true;
+    }
+
+    // Writes the hunks in order. They must cover the whole target. Adjacent self reads
+    // and fills are written as a single self read hunk. Fills long enough that it's smaller
+    // are instead written as a self read of their first byte followed by a target copy of
+    // that byte that overlaps what it writes so it repeats for the rest of the fill. The
+    // hunks are counted in the stats as they were written
+    void write(BpsPatchOutput bpsOs, BpsWriterStats stats) throws IOException {
+        stats.clearHunks();
+        write(bpsOs, stats, 0, size);
+    }
+
+    // Writes the hunks from first up to but not including end. Copies are written relative
+    // to the last ones written to the output so the bytes are the same as they would be
+    // in the middle of writing all of them. The range must not split up self reads and
+    // fills that follow each other. The hunks are added to the stats
+    void write(BpsPatchOutput bpsOs, BpsWriterStats stats, int first, int end)
+            throws IOException {
+        int index = first;
+        while (index < end) {
+            byte type = types[index];
+            if (type == SELF_READ || type == FILL) {
+                int runEnd = getSelfReadRunEnd(index, end);
+                while (index < runEnd) {
+                    long lastTargetCopyEnd = bpsOs.getLastTargetCopyEnd();
+                    int selfReadEnd = getSelfReadEnd(index, runEnd, lastTargetCopyEnd);
+                    boolean repeatFill = isRepeatedFill(selfReadEnd - 1, lastTargetCopyEnd);
+                    long selfReadLength = getSelfReadLength(index, selfReadEnd, repeatFill);
+
+                    writeHunkHeader(bpsOs, SELF_READ, selfReadLength);
+                    stats.addHunk(SELF_READ, selfReadLength);
+                    for (; index < selfReadEnd; index++) {
+                        int toWrite = repeatFill && index == selfReadEnd - 1 ? 1 : lengths[index];
+                        if (types[index] == FILL) {
+                            bpsOs.fill((byte) copyFroms[index], toWrite);
+                        } else {
+                            arenas[index].writeTo(bpsOs, copyFroms[index], toWrite);
+                        }
+                    }
+
+                    if (repeatFill) {
+                        int fill = selfReadEnd - 1;
+                        writeHunkHeader(bpsOs, TARGET_COPY, lengths[fill] - 1L);
+                        stats.addHunk(TARGET_COPY, lengths[fill] - 1L);
+                        bpsOs.writeCopyOffset(BpsHunkType.TARGET_COPY, destinations[fill],
+                                lengths[fill] - 1L);
+                    }
+                }
+                continue;
+            }
+
+            writeHunkHeader(bpsOs, type, lengths[index]);
+            stats.addHunk(type, lengths[index]);
+            if (type == SOURCE_COPY) {
+                bpsOs.writeCopyOffset(BpsHunkType.SOURCE_COPY, copyFroms[index], lengths[index]);
+            } else if (type == TARGET_COPY) {
+                bpsOs.writeCopyOffset(BpsHunkType.TARGET_COPY, copyFroms[index], lengths[index]);
+            }
+            index++;
+        }
+    }
+
+    // How many bytes write would put out for the hunks. Splits them up the same way but
+    // only adds up the sizes so none of the self read data is touched
+    long getEncodedSize() {
+        long encodedSize = 0;
+        long lastSourceCopyEnd = 0;
+        long lastTargetCopyEnd = 0;
+        int index = 0;
+        while (index < size) {
+            byte type = types[index];
+            if (type == SELF_READ || type == FILL) {
+                int runEnd = getSelfReadRunEnd(index, size);
+                while (index < runEnd) {
+                    int selfReadEnd = getSelfReadEnd(index, runEnd, lastTargetCopyEnd);
+                    boolean repeatFill = isRepeatedFill(selfReadEnd - 1, lastTargetCopyEnd);
+                    long selfReadLength = getSelfReadLength(index, selfReadEnd, repeatFill);
+                    encodedSize += getHunkHeaderSize(SELF_READ, selfReadLength) + selfReadLength;
+
+                    if (repeatFill) {
+                        int fill = selfReadEnd - 1;
+                        encodedSize += getHunkHeaderSize(TARGET_COPY, lengths[fill] - 1L)
+                                + getSignedNumberSize(destinations[fill] - lastTargetCopyEnd);
+                        lastTargetCopyEnd = (long) destinations[fill] + lengths[fill] - 1;
+                    }
+                    index = selfReadEnd;
+                }
+                continue;
+            }
+
+            encodedSize += getHunkHeaderSize(type, lengths[index]);
+            if (type == SOURCE_COPY) {
+                encodedSize += getSignedNumberSize(copyFroms[index] - lastSourceCopyEnd);
+                lastSourceCopyEnd = (long) copyFroms[index] + lengths[index];
+            } else if (type == TARGET_COPY) {
+                encodedSize += getSignedNumberSize(copyFroms[index] - lastTargetCopyEnd);
+                lastTargetCopyEnd = (long) copyFroms[index] + lengths[index];
+            }
+            index++;
+        }
+        return encodedSize;
+    }
+
+    // End of the self reads and fills that follow each other without a gap starting at index
+    private int getSelfReadRunEnd(int index, int end) {
+        int runEnd = index + 1;
+        while (runEnd < end && continuesSelfRead(runEnd)) {
+            runEnd++;
+        }
+        return runEnd;
+    }
+
+    // If the hunk is written as part of the same self read as the one before it
+    boolean continuesSelfRead(int index) {
+        return index > 0 && (types[index] == SELF_READ || types[index] == FILL)
+                && (types[index - 1] == SELF_READ || types[index - 1] == FILL)
+                && destinations[index] == getEndIndex(index - 1);
+    }
+
+    // If the hunks put the same bytes in the same place the same way. Names aren't
+    // compared since they are never written. Self read data is only ever added to the
+    // arenas so the same offset in the same arena is the same bytes
+    boolean isSameHunk(int index, HunkStore other, int otherIndex) {
+        return destinations[index] == other.destinations[otherIndex]
+                && lengths[index] == other.lengths[otherIndex]
+                && types[index] == other.types[otherIndex]
+                && copyFroms[index] == other.copyFroms[otherIndex]
+                && (types[index] != SELF_READ || arenas[index] == other.arenas[otherIndex]);
+    }
+
+    // Self reads up to and including the first byte of the next fill worth repeating with
+    // a target copy
+    private int getSelfReadEnd(int index, int runEnd, long lastTargetCopyEnd) {
+        int selfReadEnd = index;
+        boolean repeatFill = false;
+        while (selfReadEnd < runEnd && !repeatFill) {
+            repeatFill = isRepeatedFill(selfReadEnd, lastTargetCopyEnd);
+            selfReadEnd++;
+        }
+        return selfReadEnd;
+    }
+
+    private long getSelfReadLength(int index, int selfReadEnd, boolean repeatFill) {
+        long selfReadLength = repeatFill ? 1 - lengths[selfReadEnd - 1] : 0;
+        for (; index < selfReadEnd; index++) {
+            selfReadLength += lengths[index];
+        }
+        return selfReadLength;
+    }
+
+    // If the bytes saved by not writing the fill out are more than what the target copy
+    // and starting a new self read after it costs
+    private boolean isRepeatedFill(int index, long lastTargetCopyEnd) {
+        if (types[index] != FILL || lengths[index] < MIN_REPEATED_FILL_LENGTH) {
+            return false;
+        }
+        int copyLength = lengths[index] - 1;
+        int copyCost = BpsHunk.sevenBitEncodedSize(((long) copyLength - 1) << 2)
+                + BpsHunk.sevenBitEncodedSize(
+                        Math.abs(destinations[index] - lastTargetCopyEnd) << 1);
+        return copyLength > copyCost + SELF_READ_HEADER_SIZE;
+    }
+
+    private static void writeHunkHeader(BpsPatchOutput bpsOs, byte type, long length)
+            throws IOException {
+        // We know the length is at least 1
+        bpsOs.writeNumber(((length - 1) << 2) + type);
+    }
+
+    private static int getHunkHeaderSize(byte type, long length) {
+        return BpsHunk.sevenBitEncodedSize(((length - 1) << 2) + type);
+    }
+
+    private static int getSignedNumberSize(long value) {
+        return BpsHunk.sevenBitEncodedSize((Math.abs(value) << 1) | (value < 0 ? 1 : 0));
+    }
+
+    private void set(int index, String baseName, byte nameKind, int nameNumber,
+            int destinationIndex, byte type, int length, int copyFromIndex,
+            PayloadArena hunkArena) {
+        baseNames[index] = baseName;
+        nameKinds[index] = nameKind;
+        nameNumbers[index] = nameNumber;
+        destinations[index] = destinationIndex;
+        types[index] = type;
+        lengths[index] = length;
+        copyFroms[index] = copyFromIndex;
+        arenas[index] = hunkArena;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= destinations.length) {
+            return;
+        }
+        int capacity = Math.max(needed, destinations.length * 2);
+        destinations = Arrays.copyOf(destinations, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        types = Arrays.copyOf(types, capacity);
+        copyFroms = Arrays.copyOf(copyFroms, capacity);
+        baseNames = Arrays.copyOf(baseNames, capacity);
+        nameKinds = Arrays.copyOf(nameKinds, capacity);
+        nameNumbers = Arrays.copyOf(nameNumbers, capacity);
+        arenas = Arrays.copyOf(arenas, capacity);
+    }
+}
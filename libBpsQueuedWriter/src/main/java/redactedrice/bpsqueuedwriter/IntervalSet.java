@@ -0,0 +1,94 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.util.Arrays;
+
+// Sorted, non overlapping ranges of indexes kept in primitive arrays. Ranges that
+// overlap or touch are merged together as they are added
+class IntervalSet {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int size;
+    private int[] starts;
+    private int[] endsExclusive;
+
+    IntervalSet() {
+        size = 0;
+        starts = new int[DEFAULT_CAPACITY];
+        endsExclusive = new int[DEFAULT_CAPACITY];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getStart(int index) {
+        return starts[index];
+    }
+
+    int getEndExclusive(int index) {
+        return endsExclusive[index];
+    }
+
+    void add(int start, int endExclusive) {
+        if (endExclusive <= start) {
+            return;
+        }
+
+        // Find the ranges this touches. Everything from first up to but not including
+        // last gets merged with the new range
+        int first = firstEndingAtOrAfter(start);
+        int last = first;
+        while (last < size && starts[last] <= endExclusive) {
+            last++;
+        }
+
+        if (first == last) {
+            // Doesn't touch anything so make room for it
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                endsExclusive = Arrays.copyOf(endsExclusive, size * 2);
+            }
+            System.arraycopy(starts, first, starts, first + 1, size - first);
+            System.arraycopy(endsExclusive, first, endsExclusive, first + 1, size - first);
+            size++;
+        } else {
+            start = Math.min(start, starts[first]);
+            endExclusive = Math.max(endExclusive, endsExclusive[last - 1]);
+            // Remove all but one of the merged ranges
+            int removed = last - first - 1;
+            System.arraycopy(starts, last, starts, first + 1, size - last);
+            System.arraycopy(endsExclusive, last, endsExclusive, first + 1, size - last);
+            size -= removed;
+        }
+        starts[first] = start;
+        endsExclusive[first] = endExclusive;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    IntervalSet copy() {
+        IntervalSet copy = new IntervalSet();
+        copy.size = size;
+        copy.starts = Arrays.copyOf(starts, starts.length);
+        copy.endsExclusive = Arrays.copyOf(endsExclusive, endsExclusive.length);
+        return copy;
+    }
+
+    // Index of the first range that ends at or after the index or size if there are none
+    int firstEndingAtOrAfter(int index) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endsExclusive[mid] < index) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,267 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Append only storage for all the bytes self reads write. Bytes are copied in once when
+// they are appended and hunks then just refer to them by offset and length. Data is kept
+// in fixed size heap chunks and once there are more than the heap limit allows, the
+// oldest full chunks are moved out to a temp file
+class PayloadArena implements Closeable {
+    static final int CHUNK_SIZE = 0x100000;
+    // Most matches are short so spilled bytes are read a little at a time to compare them
+    private static final int SPILLED_COMPARE_SIZE = 0x100;
+
+    private final List<byte[]> chunks;
+    private int size;
+
+    private long heapLimit;
+    private Path spillDirectory;
+    private FileChannel spillFile;
+    // Chunks before this one have been written to the spill file and dropped from the heap
+    private int spilledChunks;
+    private byte[] scratch;
+
+    PayloadArena() {
+        chunks = new ArrayList<>();
+        size = 0;
+        heapLimit = Long.MAX_VALUE;
+        spillDirectory = null;
+        spillFile = null;
+        spilledChunks = 0;
+        scratch = null;
+    }
+
+    // Null uses the default temp directory
+    void setHeapLimit(long heapLimit, Path spillDirectory) {
+        if (heapLimit < 0) {
+            throw new IllegalArgumentException("Heap limit cannot be negative: " + heapLimit);
+        }
+        this.heapLimit = heapLimit;
+        this.spillDirectory = spillDirectory;
+        spillIfNeeded();
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Returns the offset the bytes were stored at
+    int append(byte[] bytes, int offset, int length) {
+        int start = reserve(length);
+        while (length > 0) {
+            int copied = copyIntoChunk(bytes, offset, length);
+            offset += copied;
+            length -= copied;
+        }
+        spillIfNeeded();
+        return start;
+    }
+
+    int append(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        int start = reserve(length);
+        while (bytes.hasRemaining()) {
+            int chunkOffset = size % CHUNK_SIZE;
+            int toCopy = Math.min(bytes.remaining(), CHUNK_SIZE - chunkOffset);
+            bytes.get(currentChunk(), chunkOffset, toCopy);
+            size += toCopy;
+        }
+        spillIfNeeded();
+        return start;
+    }
+
+    byte[] toByteArray(int offset, int length) {
+        byte[] bytes = new byte[length];
+        read(offset, bytes, 0, length);
+        return bytes;
+    }
+
+    void read(int offset, byte[] destination, int destinationOffset, int length) {
+        while (length > 0) {
+            int chunk = offset / CHUNK_SIZE;
+            int chunkOffset = offset % CHUNK_SIZE;
+            int toRead = Math.min(length, CHUNK_SIZE - chunkOffset);
+            if (chunk < spilledChunks) {
+                readSpilled(offset, ByteBuffer.wrap(destination, destinationOffset, toRead));
+            } else {
+                System.arraycopy(chunks.get(chunk), chunkOffset, destination, destinationOffset,
+                        toRead);
+            }
+            offset += toRead;
+            destinationOffset += toRead;
+            length -= toRead;
+        }
+    }
+
+    // How many of the bytes from bytesOffset on match the arena from offset on, up to max.
+    // Compared in place unless they were spilled
+    int matchLength(int offset, byte[] bytes, int bytesOffset, int max) {
+        int matched = 0;
+        while (matched < max) {
+            int chunk = offset / CHUNK_SIZE;
+            int chunkOffset = offset % CHUNK_SIZE;
+            int toCompare = Math.min(max - matched, CHUNK_SIZE - chunkOffset);
+            byte[] compareTo;
+            if (chunk < spilledChunks) {
+                toCompare = Math.min(toCompare, SPILLED_COMPARE_SIZE);
+                compareTo = getScratch();
+                readSpilled(offset, ByteBuffer.wrap(compareTo, 0, toCompare));
+                chunkOffset = 0;
+            } else {
+                compareTo = chunks.get(chunk);
+            }
+            int mismatch = Arrays.mismatch(compareTo, chunkOffset, chunkOffset + toCompare,
+                    bytes, bytesOffset + matched, bytesOffset + matched + toCompare);
+            if (mismatch >= 0) {
+                return matched + mismatch;
+            }
+            offset += toCompare;
+            matched += toCompare;
+        }
+        return matched;
+    }
+
+    long crc32(int offset, int length) {
+        CRC32 crc = new CRC32();
+        while (length > 0) {
+            int chunk = offset / CHUNK_SIZE;
+            int chunkOffset = offset % CHUNK_SIZE;
+            int toHash = Math.min(length, CHUNK_SIZE - chunkOffset);
+            if (chunk < spilledChunks) {
+                toHash = Math.min(toHash, BpsPatchOutput.BUFFER_SIZE);
+                byte[] bytes = getScratch();
+                readSpilled(offset, ByteBuffer.wrap(bytes, 0, toHash));
+                crc.update(bytes, 0, toHash);
+            } else {
+                crc.update(chunks.get(chunk), chunkOffset, toHash);
+            }
+            offset += toHash;
+            length -= toHash;
+        }
+        return crc.getValue();
+    }
+
+    void writeTo(BpsPatchOutput bpsOs, int offset, int length) throws IOException {
+        while (length > 0) {
+            int chunk = offset / CHUNK_SIZE;
+            int chunkOffset = offset % CHUNK_SIZE;
+            int toWrite = Math.min(length, CHUNK_SIZE - chunkOffset);
+            if (chunk < spilledChunks) {
+                bpsOs.transferFrom(spillFile, offset, toWrite);
+            } else {
+                bpsOs.write(chunks.get(chunk), chunkOffset, toWrite);
+            }
+            offset += toWrite;
+            length -= toWrite;
+        }
+    }
+
+    // Empties the arena but keeps the chunks still on the heap to be filled again
+    void clear() throws IOException {
+        size = 0;
+        spilledChunks = 0;
+        if (spillFile != null) {
+            spillFile.truncate(0);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunks.clear();
+        size = 0;
+        spilledChunks = 0;
+        if (spillFile != null) {
+            spillFile.close();
+            spillFile = null;
+        }
+    }
+
+    private int reserve(int length) {
+        if ((long) size + length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Self read data cannot exceed "
+                    + Integer.MAX_VALUE + " bytes. Tried to add " + length + " bytes to "
+                    + size);
+        }
+        return size;
+    }
+
+    private int copyIntoChunk(byte[] bytes, int offset, int length) {
+        int chunkOffset = size % CHUNK_SIZE;
+        int toCopy = Math.min(length, CHUNK_SIZE - chunkOffset);
+        System.arraycopy(bytes, offset, currentChunk(), chunkOffset, toCopy);
+        size += toCopy;
+        return toCopy;
+    }
+
+    // The chunk the next byte goes in, adding it if needed. Chunks that were spilled before
+    // the arena was cleared need to be put back too
+    private byte[] currentChunk() {
+        int chunk = size / CHUNK_SIZE;
+        if (chunk == chunks.size()) {
+            chunks.add(new byte[CHUNK_SIZE]);
+        } else if (chunks.get(chunk) == null) {
+            chunks.set(chunk, new byte[CHUNK_SIZE]);
+        }
+        return chunks.get(chunk);
+    }
+
+    private void spillIfNeeded() {
+        // Never spill the chunk still being filled
+        int fullChunks = size / CHUNK_SIZE;
+        while (spilledChunks < fullChunks
+                && (long) (chunks.size() - spilledChunks) * CHUNK_SIZE > heapLimit) {
+            try {
+                if (spillFile == null) {
+                    Path file = spillDirectory == null
+                            ? Files.createTempFile("bpsPayload", ".tmp")
+                            : Files.createTempFile(spillDirectory, "bpsPayload", ".tmp");
+                    spillFile = FileChannel.open(file, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                }
+                ByteBuffer toWrite = ByteBuffer.wrap(chunks.get(spilledChunks));
+                long position = (long) spilledChunks * CHUNK_SIZE;
+                while (toWrite.hasRemaining()) {
+                    position += spillFile.write(toWrite, position);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to spill self read data to disk", e);
+            }
+            chunks.set(spilledChunks, null);
+            spilledChunks++;
+        }
+    }
+
+    private void readSpilled(int offset, ByteBuffer destination) {
+        long position = offset;
+        try {
+            while (destination.hasRemaining()) {
+                int read = spillFile.read(destination, position);
+                if (read < 0) {
+                    throw new IOException("Spill file ended early at " + position);
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read spilled self read data", e);
+        }
+    }
+
+    private byte[] getScratch() {
+        if (scratch == null) {
+            scratch = new byte[BpsPatchOutput.BUFFER_SIZE];
+        }
+        return scratch;
+    }
+}
@@ -0,0 +1,42 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import jdk.jfr.FlightRecorder;
+
+import redactedrice.bpsqueuedwriter.BpsWriterStats.Phase;
+
+// Times a phase for the writer's stats and records it as a flight recorder event when
+// recording is in use. Loading the event class sets up a good part of the recorder so it
+// isn't touched until something has started it
+class PhaseTimer {
+    private final Phase phase;
+    private final long startNanos;
+    private final BpsPhaseEvent event;
+
+    private PhaseTimer(Phase phase, BpsPhaseEvent event) {
+        this.phase = phase;
+        this.event = event;
+        startNanos = System.nanoTime();
+    }
+
+    static PhaseTimer start(Phase phase) {
+        BpsPhaseEvent event = null;
+        if (FlightRecorder.isInitialized()) {
+            event = new BpsPhaseEvent();
+            event.begin();
+        }
+        return new PhaseTimer(phase, event);
+    }
+
+    void finish(BpsWriterStats stats, long bytes) {
+        stats.addPhaseNanos(phase, System.nanoTime() - startNanos);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.name();
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Copies what is written to it into chunks that are written out to the channel on the
+// executor so whatever is writing here can carry on while the bytes go out. Only a few
+// chunks are held at once. When all of them are waiting to go out, the writer writes the
+// oldest one out itself instead of waiting on the executor so this works on any executor,
+// including one whose only thread is the one writing here. Must only be written to by one
+// thread at a time
+class PipelinedChannel implements WritableByteChannel {
+    static final int CHUNK_SIZE = BpsPatchOutput.BUFFER_SIZE;
+    static final int MAX_CHUNKS = 4;
+
+    private final WritableByteChannel channel;
+    private final Executor executor;
+    // Chunks are only taken off the full queue while holding this so they go out in order
+    private final Object writeLock;
+
+    // Guarded by this
+    private final ArrayDeque<ByteBuffer> freeChunks;
+    private final ArrayDeque<ByteBuffer> fullChunks;
+    private int chunksMade;
+    // If a task to write out the full chunks is queued or running on the executor
+    private boolean draining;
+    private IOException failure;
+    private boolean open;
+
+    // Does not take ownership of the channel
+    PipelinedChannel(WritableByteChannel channel, Executor executor) {
+        this.channel = channel;
+        this.executor = executor;
+        writeLock = new Object();
+        freeChunks = new ArrayDeque<>();
+        fullChunks = new ArrayDeque<>();
+        chunksMade = 0;
+        draining = false;
+        failure = null;
+        open = true;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        synchronized (this) {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+        }
+        int written = source.remaining();
+        while (source.hasRemaining()) {
+            ByteBuffer chunk = takeFreeChunk();
+            int limit = source.limit();
+            source.limit(source.position() + Math.min(source.remaining(), chunk.remaining()));
+            chunk.put(source);
+            source.limit(limit);
+            chunk.flip();
+            queueFullChunk(chunk);
+        }
+        return written;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    // Waits until everything written here has gone out to the channel. Does not close the
+    // channel. Throws the first failure writing to it if there was one
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            open = false;
+        }
+        while (writeNextChunk()) {
+            // Keep going until they have all been written
+        }
+        throwIfFailed();
+    }
+
+    // Drops anything still waiting to go out and waits for a write already under way so
+    // nothing more is written to the channel after this returns
+    void discard() {
+        synchronized (this) {
+            open = false;
+            fullChunks.clear();
+        }
+        synchronized (writeLock) {
+            // Only here to wait for the write under way
+        }
+    }
+
+    private ByteBuffer takeFreeChunk() throws IOException {
+        while (true) {
+            synchronized (this) {
+                throwIfFailed();
+                ByteBuffer chunk = freeChunks.poll();
+                if (chunk != null) {
+                    return chunk;
+                }
+                if (chunksMade < MAX_CHUNKS) {
+                    chunksMade++;
+                    return ByteBuffer.allocateDirect(CHUNK_SIZE);
+                }
+            }
+            writeNextChunk();
+        }
+    }
+
+    private void queueFullChunk(ByteBuffer chunk) {
+        synchronized (this) {
+            fullChunks.add(chunk);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // They will be written out by the writer instead as it needs free chunks
+            synchronized (this) {
+                draining = false;
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (fullChunks.isEmpty() || failure != null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                writeNextChunk();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Already recorded for the writer to throw
+            synchronized (this) {
+                draining = false;
+            }
+        }
+    }
+
+    // Returns false if there were no full chunks to write
+    private boolean writeNextChunk() throws IOException {
+        synchronized (writeLock) {
+            ByteBuffer chunk;
+            synchronized (this) {
+                if (failure != null) {
+                    return false;
+                }
+                chunk = fullChunks.poll();
+            }
+            if (chunk == null) {
+                return false;
+            }
+
+            try {
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+                throw e;
+            }
+            chunk.clear();
+            synchronized (this) {
+                freeChunks.add(chunk);
+            }
+            return true;
+        }
+    }
+
+    private synchronized void throwIfFailed() throws IOException {
+        if (failure != null) {
+            throw new IOException("Failed to write the patch", failure);
+        }
+    }
+}
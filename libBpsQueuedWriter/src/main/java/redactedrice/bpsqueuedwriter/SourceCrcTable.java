@@ -0,0 +1,57 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.nio.ByteBuffer;
+
+// CRCs of the source up to every segment boundary so the CRC of any span of the source
+// can be found by only hashing the partial segments at its ends
+class SourceCrcTable {
+    static final int SEGMENT_SIZE = 0x1000;
+
+    private final ByteBuffer source;
+    // CRC of the source bytes before the start of each segment plus one for the whole
+    // source if it doesn't end on a segment boundary
+    private final long[] prefixCrcs;
+
+    SourceCrcTable(ByteBuffer source, Crc32Engine engine) {
+        this.source = source;
+
+        // Hash the segments in parallel then chain them together
+        long[] segmentCrcs = engine.segmentCrc32s(source, SEGMENT_SIZE);
+        prefixCrcs = new long[segmentCrcs.length + 1];
+        int fullSegmentOperator = Crc32Utils.lengthOperator(SEGMENT_SIZE);
+        for (int segment = 0; segment < segmentCrcs.length; segment++) {
+            int length = Math.min(SEGMENT_SIZE, source.limit() - segment * SEGMENT_SIZE);
+            if (length == SEGMENT_SIZE) {
+                prefixCrcs[segment + 1] = Crc32Utils.combineWithOperator(prefixCrcs[segment],
+                        segmentCrcs[segment], fullSegmentOperator);
+            } else {
+                prefixCrcs[segment + 1] = Crc32Utils.combine(prefixCrcs[segment],
+                        segmentCrcs[segment], length);
+            }
+        }
+    }
+
+    long getSourceCrc32() {
+        return prefixCrcs[prefixCrcs.length - 1];
+    }
+
+    // CRC of the source bytes from start up to but not including end
+    long spanCrc32(int start, int end) {
+        int firstFullSegment = (start + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        int endFullSegment = end / SEGMENT_SIZE;
+        // Not worth splitting up if it doesn't cover at least a couple of segments
+        if (endFullSegment - firstFullSegment < 2) {
+            return Crc32Utils.crc32(source, start, end - start);
+        }
+
+        int middleStart = firstFullSegment * SEGMENT_SIZE;
+        int middleEnd = endFullSegment * SEGMENT_SIZE;
+        long crc = Crc32Utils.crc32(source, start, middleStart - start);
+        long middleCrc = Crc32Utils.removePrefix(prefixCrcs[endFullSegment],
+                prefixCrcs[firstFullSegment], middleEnd - middleStart);
+        crc = Crc32Utils.combine(crc, middleCrc, middleEnd - middleStart);
+        return Crc32Utils.combine(crc, Crc32Utils.crc32(source, middleEnd, end - middleEnd),
+                end - middleEnd);
+    }
+}
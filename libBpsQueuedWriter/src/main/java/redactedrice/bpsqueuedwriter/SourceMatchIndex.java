@@ -0,0 +1,530 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import redactedrice.gbcframework.addressing.AddressRange;
+
+// Suffix array (with LCP array) over the source bytes used to answer longest match
+// queries limited to reuse hint ranges. Results are the same as scanning every byte
+// of every hint: the longest match wins and ties go to the earliest hint and then
+// the lowest address. Ties can also first go to the address that is cheapest to encode
+// relative to a given one. The bytes compared along the way are added to the given counter
+// when there is one. The arrays can be saved to a file and mapped back in later instead of
+// being built again
+class SourceMatchIndex {
+    // Don't prefer any address over another when breaking ties
+    static final long NO_PREFERENCE = -1;
+    private static final int MIN_OFFSET_COST = 1;
+
+    // Saved indexes are the header followed by the suffix array and then the LCP array,
+    // all as little endian ints. The header holds the magic, the version, the source
+    // length, the source CRC and the CRC of the two arrays. The version must change if
+    // the layout or how the arrays are built does
+    static final int FILE_VERSION = 1;
+    private static final int FILE_MAGIC = 0x49535042; // "BPSI"
+    private static final int FILE_HEADER_SIZE = 20;
+    private static final int WRITE_BUFFER_INTS = 0x10000;
+
+    // Only ever read by index so it can be shared with anything else reading the source
+    private final ByteBuffer source;
+    private final int sourceLength;
+    // Start indexes of the suffixes of the source in sorted order. Either wraps the
+    // arrays built here or is a view of a mapped index file
+    private final IntBuffer suffixArray;
+    // Common prefix length of the suffix at i and the one at i - 1 in the suffix array
+    private final IntBuffer lcp;
+
+    SourceMatchIndex(ByteBuffer source) {
+        this.source = source;
+        sourceLength = source.limit();
+        int[] suffixes = buildSuffixArray(source);
+        suffixArray = IntBuffer.wrap(suffixes);
+        lcp = IntBuffer.wrap(buildLcpArray(source, suffixes));
+    }
+
+    private SourceMatchIndex(ByteBuffer source, IntBuffer suffixArray, IntBuffer lcp) {
+        this.source = source;
+        sourceLength = source.limit();
+        this.suffixArray = suffixArray;
+        this.lcp = lcp;
+    }
+
+    // Maps in the index saved in the file if it was saved for a source with the same length
+    // and CRC by this version and isn't damaged. Returns null if it wasn't so the caller can
+    // build it instead. The arrays are read straight from the mapping rather than copied
+    // onto the heap
+    static SourceMatchIndex load(ByteBuffer source, long sourceCrc, Path file,
+            Crc32Engine engine) throws IOException {
+        int length = source.limit();
+        long expectedSize = getFileSize(length);
+        if (expectedSize > Integer.MAX_VALUE) {
+            return null;
+        }
+        ByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() != expectedSize) {
+                return null;
+            }
+            mapped = channel.map(MapMode.READ_ONLY, 0, expectedSize)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        if (mapped.getInt(0) != FILE_MAGIC || mapped.getInt(4) != FILE_VERSION
+                || mapped.getInt(8) != length || mapped.getInt(12) != (int) sourceCrc) {
+            return null;
+        }
+        // Checking the arrays reads the whole file but that is still far cheaper than
+        // building them and keeps a damaged file from giving wrong matches
+        ByteBuffer arrays = mapped.slice(FILE_HEADER_SIZE, 8 * length);
+        if (mapped.getInt(16) != (int) engine.crc32(arrays)) {
+            return null;
+        }
+        return new SourceMatchIndex(source,
+                arrays.slice(0, 4 * length).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+                arrays.slice(4 * length, 4 * length).order(ByteOrder.LITTLE_ENDIAN)
+                        .asIntBuffer());
+    }
+
+    // Writes to a temp file next to the file and then moves it over the file so anything
+    // loading it at the same time never sees it half written
+    void save(long sourceCrc, Path file) throws IOException {
+        if (getFileSize(sourceLength) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Source is " + sourceLength
+                    + " bytes which is too large to save the match index for");
+        }
+        Path absolute = file.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(),
+                ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(sourceLength)
+                        .putInt((int) sourceCrc).putInt(0);
+                header.flip();
+                writeFully(channel, header);
+                long arraysCrc = Crc32Utils.combine(writeInts(channel, suffixArray),
+                        writeInts(channel, lcp), 4L * sourceLength);
+
+                // The arrays' CRC is only known once they are written
+                header.putInt(16, (int) arraysCrc);
+                header.position(16);
+                channel.write(header, 16);
+            }
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Saved files are mapped in one piece so they have to fit in a single buffer
+    private static long getFileSize(int sourceLength) {
+        return FILE_HEADER_SIZE + 8L * sourceLength;
+    }
+
+    // Returns the CRC of what was written
+    private static long writeInts(FileChannel channel, IntBuffer ints) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_INTS * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        for (int start = 0; start < ints.limit(); start += WRITE_BUFFER_INTS) {
+            int count = Math.min(WRITE_BUFFER_INTS, ints.limit() - start);
+            buffer.clear();
+            buffer.asIntBuffer().put(ints.slice(start, count));
+            buffer.limit(count * 4);
+            crc.update(buffer.duplicate());
+            writeFully(channel, buffer);
+        }
+        return crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    int size() {
+        return sourceLength;
+    }
+
+    // Only matches of at least minUsefulLength are guaranteed to be reported. Anything
+    // shorter may come back as a shorter or empty match
+    AddressRange findLongestMatch(byte[] bytes, int offset, int minUsefulLength,
+            List<AddressRange> ranges) {
+        return findLongestMatch(bytes, offset, minUsefulLength, ranges, NO_PREFERENCE, null);
+    }
+
+    // Ties go to the address with the smallest encoded offset from preferNear first
+    AddressRange findLongestMatch(byte[] bytes, int offset, int minUsefulLength,
+            List<AddressRange> ranges, long preferNear, LongAdder comparisons) {
+        return findLongestMatch(bytes, offset, minUsefulLength, ranges, preferNear,
+                comparisons, Long.MAX_VALUE);
+    }
+
+    // Stops walking the index once it has compared or walked past maxCompared entries and
+    // gives the longest match found by then. That is still a real match, just maybe not the
+    // longest or cheapest one
+    AddressRange findLongestMatch(byte[] bytes, int offset, int minUsefulLength,
+            List<AddressRange> ranges, long preferNear, LongAdder comparisons,
+            long maxCompared) {
+        int patternLength = bytes.length - offset;
+        int threshold = Math.max(1, minUsefulLength);
+        if (patternLength <= 0 || sourceLength == 0) {
+            return new AddressRange(0, 0);
+        }
+
+        // If it costs us more to walk the index than to just look through each hint,
+        // we bail out and do that instead
+        long budget = 0;
+        for (AddressRange range : ranges) {
+            budget += Math.max(0, range.size());
+        }
+
+        MatchCandidate best = new MatchCandidate(preferNear);
+        int insertAt = findInsertionPoint(bytes, offset, comparisons);
+        long visited = 0;
+        long compared = 0;
+
+        // Walk forward from where the bytes would be inserted. The common length with
+        // the bytes can only shrink the further we go so we can stop once it drops
+        // below what we already have
+        int index = insertAt;
+        int common = 0;
+        if (index < sourceLength) {
+            common = commonLength(suffixArray.get(index), bytes, offset, 0);
+            compared += common + 1;
+        }
+        while (index < sourceLength && common >= Math.max(best.length, threshold)) {
+            if (++visited > budget) {
+                addComparisons(comparisons, compared + visited);
+                return scanForLongestMatch(source, bytes, offset, ranges, preferNear,
+                        comparisons, maxCompared - compared - visited);
+            }
+            if (compared + visited > maxCompared) {
+                addComparisons(comparisons, compared + visited);
+                return new AddressRange(best.address, best.address + best.length);
+            }
+            best.consider(suffixArray.get(index), common, ranges);
+            index++;
+            if (index < sourceLength) {
+                common = Math.min(common, lcp.get(index));
+            }
+        }
+
+        // Then do the same walking backwards
+        index = insertAt - 1;
+        common = 0;
+        if (index >= 0) {
+            common = commonLength(suffixArray.get(index), bytes, offset, 0);
+            compared += common + 1;
+        }
+        while (index >= 0 && common >= Math.max(best.length, threshold)) {
+            if (++visited > budget) {
+                addComparisons(comparisons, compared + visited);
+                return scanForLongestMatch(source, bytes, offset, ranges, preferNear,
+                        comparisons, maxCompared - compared - visited);
+            }
+            if (compared + visited > maxCompared) {
+                addComparisons(comparisons, compared + visited);
+                return new AddressRange(best.address, best.address + best.length);
+            }
+            best.consider(suffixArray.get(index), common, ranges);
+            common = Math.min(common, lcp.get(index));
+            index--;
+        }
+
+        addComparisons(comparisons, compared + visited);
+        return new AddressRange(best.address, best.address + best.length);
+    }
+
+    // Straight search through every byte of each hint
+    static AddressRange scanForLongestMatch(ByteBuffer source, byte[] bytes, int offset,
+            List<AddressRange> ranges) {
+        return scanForLongestMatch(source, bytes, offset, ranges, NO_PREFERENCE, null);
+    }
+
+    static AddressRange scanForLongestMatch(ByteBuffer source, byte[] bytes, int offset,
+            List<AddressRange> ranges, long preferNear, LongAdder comparisons) {
+        return scanForLongestMatch(source, bytes, offset, ranges, preferNear, comparisons,
+                Long.MAX_VALUE);
+    }
+
+    // Stops once it has compared more than maxCompared bytes and gives the longest match
+    // found by then
+    static AddressRange scanForLongestMatch(ByteBuffer source, byte[] bytes, int offset,
+            List<AddressRange> ranges, long preferNear, LongAdder comparisons,
+            long maxCompared) {
+        int maxPossible = bytes.length - offset;
+        int bestAddress = 0;
+        int bestCount = 0;
+        // Matches that only tie still need to be checked if they could be cheaper
+        int tieCheck = preferNear == NO_PREFERENCE ? 0 : 1;
+        long compared = 0;
+        for (AddressRange range : ranges) {
+            int stop = Math.min(range.getStopExclusive(), source.limit());
+            // While we haven't checked each option that could be
+            // larger for this spot (- best length since if we have less than
+            // that left, we can't find a longer one)
+            for (int startAddress = Math.max(0, range.getStart()); startAddress < stop
+                    - bestCount + tieCheck; startAddress++) {
+                if (compared >= maxCompared) {
+                    addComparisons(comparisons, compared);
+                    return new AddressRange(bestAddress, bestAddress + bestCount);
+                }
+                // If it matches, see for how long it matches
+                compared++;
+                if (bytes[offset] == source.get(startAddress)) {
+                    int matchCount = 0;
+                    while (startAddress + matchCount < stop && // Not at the end of the hint
+                            matchCount < maxPossible && // Not the end of the matcher bytes
+                            bytes[offset + matchCount] == source.get(startAddress + matchCount)) {
+                        matchCount++;
+                    }
+                    compared += matchCount;
+
+                    if (matchCount > bestCount || (matchCount == bestCount && offsetCost(
+                            startAddress, preferNear) < offsetCost(bestAddress, preferNear))) {
+                        bestCount = matchCount;
+                        bestAddress = startAddress;
+                        // Nothing can beat matching all the remaining bytes with the
+                        // cheapest offset
+                        if (bestCount == maxPossible && offsetCost(bestAddress, preferNear)
+                                <= MIN_OFFSET_COST) {
+                            addComparisons(comparisons, compared);
+                            return new AddressRange(bestAddress, bestAddress + bestCount);
+                        }
+                    }
+                }
+            }
+        }
+
+        addComparisons(comparisons, compared);
+        return new AddressRange(bestAddress, bestAddress + bestCount);
+    }
+
+    // Added once per lookup rather than as each byte is compared
+    private static void addComparisons(LongAdder comparisons, long compared) {
+        if (comparisons != null) {
+            comparisons.add(compared);
+        }
+    }
+
+    // Encoded size of a copy's relative offset. All the same if there is no preference
+    static int offsetCost(long address, long preferNear) {
+        if (preferNear == NO_PREFERENCE) {
+            return MIN_OFFSET_COST;
+        }
+        return BpsHunk.sevenBitEncodedSize(Math.abs(address - preferNear) << 1);
+    }
+
+    // Index of the first suffix that is not less than the bytes starting at offset
+    private int findInsertionPoint(byte[] bytes, int offset, LongAdder comparisons) {
+        int patternLength = bytes.length - offset;
+        int low = 0;
+        int high = sourceLength;
+        // Common lengths of the bytes with the suffixes just outside the low and high bounds.
+        // Everything between them shares at least the smaller of the two
+        int lowCommon = 0;
+        int highCommon = 0;
+        long compared = 0;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int suffix = suffixArray.get(mid);
+            int alreadyMatched = Math.min(lowCommon, highCommon);
+            int common = commonLength(suffix, bytes, offset, alreadyMatched);
+            compared += common - alreadyMatched + 1;
+            if (common == patternLength || (suffix + common < sourceLength
+                    && Byte.toUnsignedInt(source.get(suffix + common)) > Byte
+                            .toUnsignedInt(bytes[offset + common]))) {
+                high = mid;
+                highCommon = common;
+            } else {
+                low = mid + 1;
+                lowCommon = common;
+            }
+        }
+        addComparisons(comparisons, compared);
+        return low;
+    }
+
+    private int commonLength(int suffix, byte[] bytes, int offset, int alreadyMatched) {
+        int max = Math.min(sourceLength - suffix, bytes.length - offset);
+        int count = alreadyMatched;
+        while (count < max && source.get(suffix + count) == bytes[offset + count]) {
+            count++;
+        }
+        return count;
+    }
+
+    // Prefix doubling with radix sorting so repetitive ROM data (large runs of 0x00
+    // or 0xFF) doesn't blow up the build time
+    static int[] buildSuffixArray(ByteBuffer bytes) {
+        int length = bytes.limit();
+        int[] suffixes = new int[length];
+        if (length == 0) {
+            return suffixes;
+        }
+
+        int[] rank = new int[length];
+        int[] nextRank = new int[length];
+        int[] bySecondKey = new int[length];
+        int[] counts = new int[Math.max(256, length) + 1];
+
+        // Start with everything sorted by the first byte
+        for (int i = 0; i < length; i++) {
+            rank[i] = Byte.toUnsignedInt(bytes.get(i));
+            counts[rank[i] + 1]++;
+        }
+        for (int i = 1; i <= 256; i++) {
+            counts[i] += counts[i - 1];
+        }
+        for (int i = 0; i < length; i++) {
+            suffixes[counts[rank[i]]++] = i;
+        }
+        int maxRank = rerank(suffixes, rank, nextRank, 0);
+        int[] swap = rank;
+        rank = nextRank;
+        nextRank = swap;
+
+        for (int step = 1; maxRank < length - 1; step <<= 1) {
+            // Order by the rank of the suffix step bytes later. The ones that run off the
+            // end sort first and the rest keep the order from the last pass
+            int next = 0;
+            for (int i = length - step; i < length; i++) {
+                bySecondKey[next++] = i;
+            }
+            for (int i = 0; i < length; i++) {
+                if (suffixes[i] >= step) {
+                    bySecondKey[next++] = suffixes[i] - step;
+                }
+            }
+
+            // Then stable sort that by the current rank
+            Arrays.fill(counts, 0, maxRank + 2, 0);
+            for (int i = 0; i < length; i++) {
+                counts[rank[i] + 1]++;
+            }
+            for (int i = 1; i <= maxRank + 1; i++) {
+                counts[i] += counts[i - 1];
+            }
+            for (int i = 0; i < length; i++) {
+                int suffix = bySecondKey[i];
+                suffixes[counts[rank[suffix]]++] = suffix;
+            }
+
+            maxRank = rerank(suffixes, rank, nextRank, step);
+            swap = rank;
+            rank = nextRank;
+            nextRank = swap;
+        }
+        return suffixes;
+    }
+
+    private static int rerank(int[] suffixes, int[] rank, int[] nextRank, int step) {
+        int length = suffixes.length;
+        int currentRank = 0;
+        nextRank[suffixes[0]] = 0;
+        for (int i = 1; i < length; i++) {
+            int prev = suffixes[i - 1];
+            int curr = suffixes[i];
+            if (rank[prev] != rank[curr] || secondRank(rank, prev, step) != secondRank(rank,
+                    curr, step)) {
+                currentRank++;
+            }
+            nextRank[curr] = currentRank;
+        }
+        return currentRank;
+    }
+
+    private static int secondRank(int[] rank, int suffix, int step) {
+        if (step == 0) {
+            return 0;
+        }
+        return suffix + step < rank.length ? rank[suffix + step] : -1;
+    }
+
+    // Kasai's algorithm
+    static int[] buildLcpArray(ByteBuffer bytes, int[] suffixes) {
+        int length = bytes.limit();
+        int[] commonLengths = new int[length];
+        int[] positions = new int[length];
+        for (int i = 0; i < length; i++) {
+            positions[suffixes[i]] = i;
+        }
+
+        int common = 0;
+        for (int suffix = 0; suffix < length; suffix++) {
+            int position = positions[suffix];
+            if (position == 0) {
+                common = 0;
+                continue;
+            }
+            int prev = suffixes[position - 1];
+            while (suffix + common < length && prev + common < length
+                    && bytes.get(suffix + common) == bytes.get(prev + common)) {
+                common++;
+            }
+            commonLengths[position] = common;
+            if (common > 0) {
+                common--;
+            }
+        }
+        return commonLengths;
+    }
+
+    // Tracks the best match found so far using the same preference order as scanning
+    // through the hints in order
+    private static class MatchCandidate {
+        final long preferNear;
+        int address = 0;
+        int length = 0;
+        int hintIndex = Integer.MAX_VALUE;
+
+        MatchCandidate(long preferNear) {
+            this.preferNear = preferNear;
+        }
+
+        void consider(int candidate, int common, List<AddressRange> ranges) {
+            int hint = 0;
+            for (AddressRange range : ranges) {
+                if (candidate >= range.getStart() && candidate < range.getStopExclusive()) {
+                    int matched = Math.min(common, range.getStopExclusive() - candidate);
+                    if (matched > length || (matched == length && isPreferred(candidate, hint))) {
+                        address = candidate;
+                        length = matched;
+                        hintIndex = hint;
+                    }
+                }
+                hint++;
+            }
+        }
+
+        private boolean isPreferred(int candidate, int hint) {
+            int cost = offsetCost(candidate, preferNear);
+            int bestCost = offsetCost(address, preferNear);
+            if (cost != bestCost) {
+                return cost < bestCost;
+            }
+            return hint < hintIndex || (hint == hintIndex && candidate < address);
+        }
+    }
+}
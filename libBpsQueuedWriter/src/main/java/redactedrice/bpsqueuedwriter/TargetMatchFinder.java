@@ -0,0 +1,138 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+// LZ style hash chains over the bytes of blocks that have already been finalized so later
+// blocks can target copy them instead of self reading them again. Only bytes at lower
+// addresses than where the copy will be written can be used since the target is written
+// in order when the patch is applied. The blocks' bytes are compared where they were
+// appended in the arena instead of keeping copies of them
+class TargetMatchFinder {
+    // How many previous occurrences of the same hash we check before giving up
+    static final int MAX_CHAIN_DEPTH = 32;
+
+    private static final int HASH_BITS = 16;
+    private static final int HASH_BYTES = 4;
+    private static final int INITIAL_POSITIONS = 0x1000;
+
+    private final PayloadArena payloads;
+    private int[] blockAddresses;
+    private int[] blockArenaStarts;
+    private int[] blockLengths;
+    private int blocks;
+
+    private final int[] heads;
+    // For each indexed position, the block and offset it is at and the
+    // previous position with the same hash
+    private int[] positionBlocks;
+    private int[] positionOffsets;
+    private int[] previous;
+    private int positions;
+
+    private int matchAddress;
+
+    TargetMatchFinder(PayloadArena payloads) {
+        this.payloads = payloads;
+        blockAddresses = new int[16];
+        blockArenaStarts = new int[16];
+        blockLengths = new int[16];
+        blocks = 0;
+
+        heads = new int[1 << HASH_BITS];
+        Arrays.fill(heads, -1);
+        positionBlocks = new int[INITIAL_POSITIONS];
+        positionOffsets = new int[INITIAL_POSITIONS];
+        previous = new int[INITIAL_POSITIONS];
+        positions = 0;
+    }
+
+    // Forgets all the blocks but keeps the tables to use again
+    void clear() {
+        blocks = 0;
+        Arrays.fill(heads, -1);
+        positions = 0;
+        matchAddress = 0;
+    }
+
+    // Positions in the block are not searchable until they are indexed. The block's bytes
+    // must stay in the arena at the given offset
+    int addBlock(int destinationIndex, int arenaStart, int length) {
+        if (blocks == blockAddresses.length) {
+            blockAddresses = Arrays.copyOf(blockAddresses, blocks * 2);
+            blockArenaStarts = Arrays.copyOf(blockArenaStarts, blocks * 2);
+            blockLengths = Arrays.copyOf(blockLengths, blocks * 2);
+        }
+        int block = blocks++;
+        blockAddresses[block] = destinationIndex;
+        blockArenaStarts[block] = arenaStart;
+        blockLengths[block] = length;
+        return block;
+    }
+
+    // The bytes are the block's own, passed in since they are already at hand
+    void indexPositions(int block, byte[] bytes, int fromOffset, int toOffset) {
+        int stop = Math.min(toOffset, bytes.length - HASH_BYTES + 1);
+        for (int offset = fromOffset; offset < stop; offset++) {
+            if (positions == previous.length) {
+                int newSize = positions * 2;
+                positionBlocks = Arrays.copyOf(positionBlocks, newSize);
+                positionOffsets = Arrays.copyOf(positionOffsets, newSize);
+                previous = Arrays.copyOf(previous, newSize);
+            }
+            int hash = hashAt(bytes, offset);
+            positionBlocks[positions] = block;
+            positionOffsets[positions] = offset;
+            previous[positions] = heads[hash];
+            heads[hash] = positions;
+            positions++;
+        }
+    }
+
+    // Returns the length of the longest match for the bytes starting at offset that can be
+    // copied to the destination index. The address to copy from is available through
+    // getMatchAddress. Of matches as long as each other the lowest address is used so
+    // repeats copy the original rather than the copy before them. Adds the bytes it
+    // compared to the counter
+    int findLongestMatch(byte[] bytes, int offset, int destinationIndex,
+            LongAdder comparisons) {
+        matchAddress = 0;
+        if (bytes.length - offset < HASH_BYTES) {
+            return 0;
+        }
+
+        int bestLength = 0;
+        long compared = 0;
+        int position = heads[hashAt(bytes, offset)];
+        for (int depth = 0; depth < MAX_CHAIN_DEPTH && position >= 0; depth++) {
+            int block = positionBlocks[position];
+            int candidateOffset = positionOffsets[position];
+            int candidateAddress = blockAddresses[block] + candidateOffset;
+            if (candidateAddress < destinationIndex) {
+                int max = Math.min(blockLengths[block] - candidateOffset, bytes.length - offset);
+                int length = payloads.matchLength(blockArenaStarts[block] + candidateOffset,
+                        bytes, offset, max);
+                compared += length + 1;
+                // The chain goes from the newest position to the oldest
+                if (length > 0 && length >= bestLength) {
+                    bestLength = length;
+                    matchAddress = candidateAddress;
+                }
+            }
+            position = previous[position];
+        }
+        comparisons.add(compared);
+        return bestLength;
+    }
+
+    int getMatchAddress() {
+        return matchAddress;
+    }
+
+    private static int hashAt(byte[] bytes, int offset) {
+        int value = (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+        return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+}
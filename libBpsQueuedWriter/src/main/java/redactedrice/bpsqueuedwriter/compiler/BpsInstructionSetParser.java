@@ -11,7 +11,7 @@ import redactedrice.compiler.CompilerUtils;
 public class BpsInstructionSetParser implements InstructionSetParser {
     @Override
     public List<String> getSupportedInstructions() {
-        return List.of("bps_sc", "bps_tc");
+        return List.of("bps_sc", "bps_tc", "bps_fill", "bps_reuse");
     }
 
     @Override
@@ -21,6 +21,10 @@ public class BpsInstructionSetParser implements InstructionSetParser {
         case "bps_sc":
         case "bps_tc":
             return SourceTargetCopyInstruct.create(instruction, splitArgs);
+        case "bps_fill":
+            return FillInstruct.create(splitArgs);
+        case "bps_reuse":
+            return ReuseBlockInstruct.create(splitArgs);
 
         default:
             throw new UnsupportedOperationException("Unrecognized instruction: " + instruction);
@@ -0,0 +1,76 @@
+package redactedrice.bpsqueuedwriter.compiler;
+
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import redactedrice.bpsqueuedwriter.BpsWriter;
+import redactedrice.compiler.instructions.FixedLengthInstruction;
+import redactedrice.gbcframework.QueuedWriter;
+import redactedrice.gbcframework.addressing.AssignedAddresses;
+import redactedrice.gbcframework.addressing.BankAddress;
+import redactedrice.gbcframework.utils.RomUtils;
+
+public class FillInstruct extends FixedLengthInstruction {
+    private byte value;
+
+    public FillInstruct(byte value, int fillLength) {
+        super(fillLength);
+        this.value = value;
+    }
+
+    public static FillInstruct create(String[] args) {
+        final String supportedArgs = "bps_fill only supports (byte value, int fillLength): ";
+
+        if (args.length != 2) {
+            throw new IllegalArgumentException(supportedArgs + "given: " + Arrays.toString(args));
+        }
+
+        try {
+            int value = Integer.parseInt(args[0]);
+            int fillLength = Integer.parseInt(args[1]);
+            if (value < 0 || value > 0xFF) {
+                throw new IllegalArgumentException("Value is not a byte: " + value);
+            }
+            if (fillLength < 1) {
+                throw new IllegalArgumentException("Fill length must be at least 1: "
+                        + fillLength);
+            }
+            return new FillInstruct((byte) value, fillLength);
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException(supportedArgs + "given: " + Arrays.toString(args)
+                    + " and encountered error: " + iae.getMessage());
+        }
+    }
+
+    @Override
+    public boolean containsPlaceholder() {
+        return false;
+    }
+
+    @Override
+    public void replacePlaceholderIfPresent(Map<String, String> placeholderToArgs) {
+        // Nothing to do
+    }
+
+    @Override
+    public void writeFixedSizeBytes(QueuedWriter writer, BankAddress instructionAddress,
+            AssignedAddresses assignedAddresses) throws IOException {
+        if (writer instanceof BpsWriter) {
+            // Same as a copy, the fill gets its own hunk and the rest of the block carries
+            // on after it
+            int instructAddr = RomUtils.convertToGlobalAddress(instructionAddress);
+            String currBlockName = writer.getCurrentBlockName();
+            ((BpsWriter) writer).newFill(currBlockName + "FillInstructHunk", instructAddr,
+                    getSize(), value);
+            ((BpsWriter) writer).startContinuedBlock(instructAddr + getSize(),
+                    currBlockName + "_continued");
+        } else {
+            // Any other writer just gets the bytes
+            byte[] filled = new byte[getSize()];
+            Arrays.fill(filled, value);
+            writer.append(filled);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package redactedrice.bpsqueuedwriter.compiler;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import redactedrice.bpsqueuedwriter.BpsWriter;
+import redactedrice.compiler.instructions.FixedLengthInstruction;
+import redactedrice.gbcframework.QueuedWriter;
+import redactedrice.gbcframework.addressing.AddressRange;
+import redactedrice.gbcframework.addressing.AssignedAddresses;
+import redactedrice.gbcframework.addressing.BankAddress;
+import redactedrice.gbcframework.utils.RomUtils;
+
+// Takes up no space. Everything after it in the block is matched against the given parts
+// of the source, or the whole source if none are given, and against the target
+public class ReuseBlockInstruct extends FixedLengthInstruction {
+    // Empty for the whole source
+    private List<AddressRange> reuseHints;
+
+    public ReuseBlockInstruct(List<AddressRange> reuseHints) {
+        super(0);
+        this.reuseHints = new ArrayList<>(reuseHints);
+    }
+
+    public static ReuseBlockInstruct create(String[] args) {
+        final String supportedArgs = "bps_reuse only supports pairs of (int startAddress, "
+                + "int stopAddressExclusive) or no args for the whole source: ";
+
+        List<String> givenArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.trim().isEmpty()) {
+                givenArgs.add(arg.trim());
+            }
+        }
+        if (givenArgs.size() % 2 != 0) {
+            throw new IllegalArgumentException(supportedArgs + "given: " + Arrays.toString(args));
+        }
+
+        try {
+            List<AddressRange> reuseHints = new ArrayList<>();
+            for (int arg = 0; arg < givenArgs.size(); arg += 2) {
+                int start = Integer.parseInt(givenArgs.get(arg));
+                int stop = Integer.parseInt(givenArgs.get(arg + 1));
+                if (start < 0 || stop <= start) {
+                    throw new IllegalArgumentException("Not a valid range: " + start + " to "
+                            + stop);
+                }
+                reuseHints.add(new AddressRange(start, stop));
+            }
+            return new ReuseBlockInstruct(reuseHints);
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException(supportedArgs + "given: " + Arrays.toString(args)
+                    + " and encountered error: " + iae.getMessage());
+        }
+    }
+
+    @Override
+    public boolean containsPlaceholder() {
+        return false;
+    }
+
+    @Override
+    public void replacePlaceholderIfPresent(Map<String, String> placeholderToArgs) {
+        // Nothing to do
+    }
+
+    @Override
+    public void writeFixedSizeBytes(QueuedWriter writer, BankAddress instructionAddress,
+            AssignedAddresses assignedAddresses) throws IOException {
+        // Only changes how the bytes are put in the patch so other writers have nothing to do
+        if (writer instanceof BpsWriter) {
+            BpsWriter bpsWriter = (BpsWriter) writer;
+            List<AddressRange> hints = reuseHints;
+            if (hints.isEmpty()) {
+                hints = List.of(new AddressRange(0, bpsWriter.getSource().size()));
+            }
+            int instructAddr = RomUtils.convertToGlobalAddress(instructionAddress);
+            bpsWriter.startNewBlock(instructAddr, writer.getCurrentBlockName() + "_reused",
+                    hints, true);
+        }
+    }
+}
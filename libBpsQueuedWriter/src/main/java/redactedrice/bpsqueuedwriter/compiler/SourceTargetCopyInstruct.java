@@ -70,8 +70,8 @@ public class SourceTargetCopyInstruct extends FixedLengthInstruction {
             int instructAddr = RomUtils.convertToGlobalAddress(instructionAddress);
             String currBlockName = writer.getCurrentBlockName();
             ((BpsWriter) writer).newCopyHunk(currBlockName + "SourceTargetCopyInstructHunk",
-                    instructAddr, type, copyFromStartIndex, getSize());
-            ((BpsWriter) writer).startNewBlock(instructAddr + getSize(),
+                    instructAddr, type, getSize(), copyFromStartIndex);
+            ((BpsWriter) writer).startContinuedBlock(instructAddr + getSize(),
                     currBlockName + "_continued");
         } else {
             throw new IllegalArgumentException(
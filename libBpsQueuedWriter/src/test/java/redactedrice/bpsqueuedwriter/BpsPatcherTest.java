@@ -0,0 +1,68 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+
+class BpsPatcherTest {
+    private static final int LINKS = 50000;
+
+    @Test
+    void verifiesLongTargetCopyChain() throws IOException {
+        byte[] source = ChainedPatches.createSource();
+        byte[] patch = ChainedPatches.createPatch(source, LINKS);
+        assertDoesNotThrow(() -> BpsPatcher.verify(source, ByteBuffer.wrap(patch)));
+    }
+
+    @Test
+    void rejectsLongTargetCopyChainWithWrongTarget() throws IOException {
+        byte[] source = ChainedPatches.createSource();
+        byte[] patch = ChainedPatches.createPatch(source, LINKS);
+        // Change a byte of the first link's self read and fix the patch CRC so only the
+        // target CRC is wrong
+        patch[findFirstLink(patch) + 10] ^= 0x55;
+        CRC32 patchCrc = new CRC32();
+        patchCrc.update(patch, 0, patch.length - 4);
+        ByteBuffer.wrap(patch, patch.length - 4, 4).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt((int) patchCrc.getValue());
+        assertThrows(IllegalArgumentException.class,
+                () -> BpsPatcher.verify(source, ByteBuffer.wrap(patch)));
+    }
+
+    @Test
+    void writesAndVerifiesLongTargetCopyChainFile() throws IOException {
+        byte[] source = ChainedPatches.createSource();
+        File file = Files.createTempFile("chained", ".bps").toFile();
+        try {
+            ChainedPatches.createWriter(source, LINKS).writeBps(file, List.of(), true);
+            assertArrayEquals(ChainedPatches.createTarget(LINKS),
+                    BpsPatcher.apply(source, Files.readAllBytes(file.toPath())));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static int findFirstLink(byte[] patch) {
+        byte[] firstLink = Arrays.copyOf(ChainedPatches.createTarget(1),
+                ChainedPatches.LINK_LENGTH);
+        for (int index = 0; index + firstLink.length <= patch.length; index++) {
+            if (Arrays.equals(patch, index, index + firstLink.length, firstLink, 0,
+                    firstLink.length)) {
+                return index;
+            }
+        }
+        throw new IllegalArgumentException("First link is not in the patch");
+    }
+}
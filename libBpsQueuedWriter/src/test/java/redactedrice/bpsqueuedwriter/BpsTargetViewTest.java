@@ -0,0 +1,82 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+
+import redactedrice.bpsqueuedwriter.BpsWriter.BpsHunkCopyType;
+
+class BpsTargetViewTest {
+    // Deep enough that following each target copy with a call of its own overflows the stack
+    private static final int LINKS = 50000;
+
+    @Test
+    void createsTargetOfLongTargetCopyChain() {
+        byte[] source = ChainedPatches.createSource();
+        BpsWriter writer = ChainedPatches.createWriter(source, LINKS);
+        assertArrayEquals(ChainedPatches.createTarget(LINKS), writer.createTargetBytes(List.of()));
+    }
+
+    @Test
+    void writesLongTargetCopyChain() throws IOException {
+        byte[] source = ChainedPatches.createSource();
+        byte[] patch = ChainedPatches.createPatch(source, LINKS);
+        assertArrayEquals(ChainedPatches.createTarget(LINKS), BpsPatcher.apply(source, patch));
+    }
+
+    @Test
+    void computesCrcOfLongTargetCopyChain() {
+        byte[] source = ChainedPatches.createSource();
+        BpsWriter writer = ChainedPatches.createWriter(source, LINKS);
+        // The links cover the whole target so the hunks can be viewed as they were queued
+        BpsTargetView view = new BpsTargetView(ByteBuffer.wrap(source),
+                new SourceCrcTable(ByteBuffer.wrap(source), Crc32Engine.getDefault()),
+                writer.hunks);
+
+        CRC32 expected = new CRC32();
+        expected.update(ChainedPatches.createTarget(LINKS));
+        assertEquals(expected.getValue(), view.computeCrc32());
+    }
+
+    @Test
+    void computesCrcOfEndOfLongTargetCopyChain() {
+        byte[] source = ChainedPatches.createSource();
+        BpsWriter writer = ChainedPatches.createWriter(source, LINKS);
+        BpsTargetView view = new BpsTargetView(ByteBuffer.wrap(source),
+                new SourceCrcTable(ByteBuffer.wrap(source), Crc32Engine.getDefault()),
+                writer.hunks);
+
+        // None of the bytes before the last links have been hashed so the first copies have
+        // to be looked up through every link before them
+        int first = writer.hunks.size() - 10;
+        int start = writer.hunks.getDestinationIndex(first);
+        byte[] target = ChainedPatches.createTarget(LINKS);
+        CRC32 expected = new CRC32();
+        expected.update(target, start, target.length - start);
+        assertEquals(expected.getValue(), view.computeCrc32(first, writer.hunks.size()));
+    }
+
+    @Test
+    void readsOverlappingTargetCopies() {
+        byte[] source = ChainedPatches.createSource();
+        BpsWriter writer = new BpsWriter(source);
+        writer.setTargetLength(0x1000);
+        writer.newSelfRead(0, new byte[] {1, 2, 3});
+        // Repeats the 3 bytes then repeats that from partway through it
+        writer.newCopyHunk(3, BpsHunkCopyType.TARGET_COPY, 0x7FD, 0);
+        writer.newCopyHunk(0x800, BpsHunkCopyType.TARGET_COPY, 0x800, 0x7FF);
+
+        byte[] expected = new byte[0x1000];
+        for (int index = 0; index < expected.length; index++) {
+            expected[index] = (byte) (index < 0x800 ? index % 3 + 1 : expected[index - 1]);
+        }
+        assertArrayEquals(expected, writer.createTargetBytes(List.of()));
+    }
+}
@@ -0,0 +1,61 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import redactedrice.bpsqueuedwriter.BpsWriter.BpsHunkCopyType;
+
+// Patches whose target copies copy other target copies. Each link is a byte of its own
+// followed by a copy of the link before it so every link reads through all those before it
+final class ChainedPatches {
+    static final int LINK_LENGTH = 65;
+
+    private ChainedPatches() {
+    }
+
+    static byte[] createSource() {
+        byte[] source = new byte[0x100];
+        for (int index = 0; index < source.length; index++) {
+            source[index] = (byte) (index * 7);
+        }
+        return source;
+    }
+
+    static byte[] createTarget(int links) {
+        byte[] target = new byte[LINK_LENGTH * links];
+        for (int index = 0; index < LINK_LENGTH; index++) {
+            target[index] = (byte) (index * 3 + 1);
+        }
+        for (int link = 1; link < links; link++) {
+            int start = link * LINK_LENGTH;
+            target[start] = (byte) link;
+            System.arraycopy(target, start + 1 - LINK_LENGTH, target, start + 1,
+                    LINK_LENGTH - 1);
+        }
+        return target;
+    }
+
+    static BpsWriter createWriter(byte[] source, int links) {
+        byte[] target = createTarget(links);
+        BpsWriter writer = new BpsWriter(source);
+        writer.setTargetLength(target.length);
+        byte[] first = new byte[LINK_LENGTH];
+        System.arraycopy(target, 0, first, 0, LINK_LENGTH);
+        writer.newSelfRead(0, first);
+        for (int link = 1; link < links; link++) {
+            int start = link * LINK_LENGTH;
+            writer.newSelfRead(start, new byte[] {target[start]});
+            writer.newCopyHunk(start + 1, BpsHunkCopyType.TARGET_COPY, LINK_LENGTH - 1,
+                    start + 1 - LINK_LENGTH);
+        }
+        return writer;
+    }
+
+    static byte[] createPatch(byte[] source, int links) throws IOException {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        createWriter(source, links).writeBps(patch, List.of());
+        return patch.toByteArray();
+    }
+}
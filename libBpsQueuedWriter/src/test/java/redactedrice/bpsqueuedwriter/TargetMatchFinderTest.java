@@ -0,0 +1,37 @@
+package redactedrice.bpsqueuedwriter;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class TargetMatchFinderTest {
+    private static final int BLOCKS = 100;
+    private static final int FIRST_ADDRESS = 0x100;
+    private static final int BLOCK_SPACING = 80;
+
+    @Test
+    void repeatedBlocksCopyTheOriginal() throws Exception {
+        byte[] block = new byte[64];
+        new Random(5).nextBytes(block);
+        BpsWriter writer = new BpsWriter(ChainedPatches.createSource());
+        writer.setTargetReuse(true);
+        writer.setTargetLength(FIRST_ADDRESS + BLOCKS * BLOCK_SPACING);
+        for (int index = 0; index < BLOCKS; index++) {
+            writer.startNewBlock(FIRST_ADDRESS + index * BLOCK_SPACING, "Block" + index);
+            writer.append(block);
+        }
+        writer.blockBuilder.finalizeSelfReadBeingCreated(writer.hunks);
+
+        int targetCopies = 0;
+        for (int index = 0; index < writer.hunks.size(); index++) {
+            if (writer.hunks.getType(index) == HunkStore.TARGET_COPY) {
+                assertEquals(FIRST_ADDRESS, writer.hunks.getCopyFromIndex(index));
+                targetCopies++;
+            }
+        }
+        assertEquals(BLOCKS - 1, targetCopies);
+    }
+}
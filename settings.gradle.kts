@@ -12,5 +12,6 @@ plugins {
 
 rootProject.name = "BpsQueuedWriter"
 include("libBpsQueuedWriter")
+include("jmh")
 includeBuild("../Gbz80Compiler")
 includeBuild("../GbcFramework")